@@ -0,0 +1,141 @@
+package org.pcj.examples;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Locale;
+import org.pcj.PCJ;
+import org.pcj.RegisterStorage;
+import org.pcj.StartPoint;
+import org.pcj.examples.RandomAccessAsyncAt.Config;
+import org.pcj.examples.RandomAccessAsyncAt.RoundResult;
+
+/**
+ * Runs RandomAccessAsyncAt over every combination of table size, updates per cell, batch size, flow control
+ * window and mode, each point warmed up and then repeated, and writes median and percentiles of GUPS with
+ * verification error rate as CSV. Parameters that do not apply to a mode are not swept for it: batch size
+ * in task mode and window in hypercube mode. In put mode window is the number of receive slots per PE.
+ */
+@RegisterStorage(RandomAccessAsyncAt.Shared.class)
+public class PcjGupsSweep implements StartPoint {
+
+    public static void main(String[] args) throws IOException {
+        String[] nodes = {
+                "localhost",
+                "localhost",
+                "localhost",
+                "localhost"
+        };
+        PCJ.executionBuilder(PcjGupsSweep.class)
+                .addProperty("logN", System.getProperty("logN", "16,20"))
+                .addProperty("updatesPerCell", System.getProperty("updatesPerCell", "4"))
+                .addProperty("batchSize", System.getProperty("batchSize", "256,1024,4096"))
+                .addProperty("window", System.getProperty("window", "16,100,400"))
+                .addProperty("mode", System.getProperty("mode", "task,batched,put,hypercube"))
+                .addProperty("adaptiveWindow", System.getProperty("adaptiveWindow", "false"))
+                .addProperty("verify", System.getProperty("verify", "distributed")) // local or distributed
+                .addProperty("warmups", System.getProperty("warmups", "1"))
+                .addProperty("repeats", System.getProperty("repeats", "5"))
+                .addProperty("timeBound", System.getProperty("timeBound", "0")) // seconds, 0 means no bound
+                .addProperty("csvFile", System.getProperty("csvFile", "gups-sweep.csv"))
+                .addNodes(nodes)
+                .deploy();
+    }
+
+    @Override
+    public void main() throws Throwable {
+        int[] logNs = parseList(PCJ.getProperty("logN"));
+        int[] updatesPerCells = parseList(PCJ.getProperty("updatesPerCell"));
+        int[] batchSizes = parseList(PCJ.getProperty("batchSize"));
+        int[] windows = parseList(PCJ.getProperty("window"));
+        String[] modes = PCJ.getProperty("mode").split(",");
+        boolean adaptiveWindow = Boolean.parseBoolean(PCJ.getProperty("adaptiveWindow"));
+        String verify = PCJ.getProperty("verify");
+        int warmups = Integer.parseInt(PCJ.getProperty("warmups"));
+        int repeats = Integer.parseInt(PCJ.getProperty("repeats"));
+        long timeBound = Long.parseLong(PCJ.getProperty("timeBound"));
+        String csvFile = PCJ.getProperty("csvFile");
+
+        RandomAccessAsyncAt benchmark = new RandomAccessAsyncAt();
+        Writer csv = null;
+        if (PCJ.myId() == 0) {
+            csv = Files.newBufferedWriter(Paths.get(csvFile), StandardCharsets.UTF_8);
+            csv.write("mode,threads,logN,updatesPerCell,batchSize,window,repeats,"
+                              + "gups_median,gups_p10,gups_p90,gups_min,gups_max,error_rate\n");
+        }
+
+        try {
+            for (String mode : modes) {
+                mode = mode.trim();
+                int[] modeBatchSizes = "task".equals(mode) ? new int[]{batchSizes[0]} : batchSizes;
+                int[] modeWindows = "hypercube".equals(mode) ? new int[]{windows[0]} : windows;
+                for (int logN : logNs) {
+                    for (int updatesPerCell : updatesPerCells) {
+                        for (int batchSize : modeBatchSizes) {
+                            for (int window : modeWindows) {
+                                Config config = new Config();
+                                config.logN = logN;
+                                config.timeBoundSeconds = timeBound > 0 ? timeBound : Long.MAX_VALUE;
+                                config.updatesPerCell = updatesPerCell;
+                                config.mode = mode;
+                                config.batchSize = batchSize;
+                                config.window = window;
+                                config.adaptiveWindow = adaptiveWindow;
+                                config.verify = verify;
+
+                                if (PCJ.myId() == 0) {
+                                    System.out.printf(Locale.ENGLISH, "Point: mode %s, logN %d, updates per cell %d, batch size %d, window %d%n",
+                                            mode, logN, updatesPerCell, batchSize, window);
+                                }
+                                for (int i = 0; i < warmups; ++i) {
+                                    benchmark.runRound(config);
+                                }
+                                double[] gups = new double[repeats];
+                                double errorRateSum = 0;
+                                for (int i = 0; i < repeats; ++i) {
+                                    RoundResult result = benchmark.runRound(config);
+                                    gups[i] = result.gups();
+                                    errorRateSum += result.errorRate();
+                                }
+
+                                if (PCJ.myId() == 0) {
+                                    Arrays.sort(gups);
+                                    double errorRate = errorRateSum / repeats;
+                                    csv.write(String.format(Locale.ENGLISH, "%s,%d,%d,%d,%d,%d,%d,%.6f,%.6f,%.6f,%.6f,%.6f,%.9f%n",
+                                            mode, PCJ.threadCount(), logN, updatesPerCell, batchSize, window, repeats,
+                                            percentile(gups, 50), percentile(gups, 10), percentile(gups, 90),
+                                            gups[0], gups[repeats - 1], errorRate));
+                                    csv.flush();
+                                    System.out.printf(Locale.ENGLISH, "Median %.6f GUPS, p10 %.6f, p90 %.6f, error rate %.6f%%%n",
+                                            percentile(gups, 50), percentile(gups, 10), percentile(gups, 90), 100.0 * errorRate);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (csv != null) {
+                csv.close();
+            }
+        }
+        if (PCJ.myId() == 0) {
+            System.out.printf(Locale.ENGLISH, "Results written to: %s%n", csvFile);
+        }
+    }
+
+    private static int[] parseList(String list) {
+        return Arrays.stream(list.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+    }
+
+    /**
+     * Nearest-rank percentile of sorted values.
+     */
+    private static double percentile(double[] sorted, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+}
@@ -0,0 +1,143 @@
+package org.pcj.examples;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import org.pcj.PCJ;
+import org.pcj.RegisterStorage;
+import org.pcj.StartPoint;
+import org.pcj.Storage;
+import org.pcj.examples.PcjTeraSort.TeraFileOutput;
+
+/**
+ * Parallel generator of TeraSort input: 100-byte records with 10-byte random key, followed by the record
+ * number and filler, similar to gensort. Every record depends only on its number, so each thread writes
+ * own range of records at its position in the output file and the result does not depend on thread count.
+ */
+@RegisterStorage(PcjTeraGen.Vars.class)
+public class PcjTeraGen implements StartPoint {
+
+    private static final int recordLength = 100;
+    private static final int keyLength = 10;
+    private static final byte[] hexDigits = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+    };
+
+    @Storage(PcjTeraGen.class)
+    enum Vars {
+        checksums
+    }
+
+    private long[] checksums;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Parameters: <output-file> <records> <nodes-file>");
+            return;
+        }
+        PCJ.executionBuilder(PcjTeraGen.class)
+                .addProperty("outputFile", args[0])
+                .addProperty("records", args[1])
+                .addNodes(new File(args[2]))
+                .deploy();
+    }
+
+    @Override
+    public void main() throws Throwable {
+        String outputFile = PCJ.getProperty("outputFile");
+        long totalRecords = Long.parseLong(PCJ.getProperty("records"));
+
+        if (PCJ.myId() == 0) {
+            System.out.printf(Locale.ENGLISH, "Generating %d records to: %s%n", totalRecords, outputFile);
+            checksums = new long[PCJ.threadCount()];
+            new File(outputFile).delete();
+            try (RandomAccessFile raf = new RandomAccessFile(outputFile, "rw")) {
+                raf.setLength(totalRecords * recordLength);
+            }
+        }
+        PCJ.barrier();
+
+        long localRecords = totalRecords / PCJ.threadCount();
+        long reminderRecords = totalRecords - localRecords * PCJ.threadCount();
+        long startRecord = PCJ.myId() * localRecords + Math.min(PCJ.myId(), reminderRecords);
+        if (PCJ.myId() < reminderRecords) {
+            ++localRecords;
+        }
+
+        long startTime = System.nanoTime();
+        byte[] record = new byte[recordLength];
+        CRC32 crc = new CRC32();
+        long checksum = 0;
+        try (TeraFileOutput output = new TeraFileOutput(outputFile, startRecord)) {
+            for (long i = startRecord; i < startRecord + localRecords; ++i) {
+                generateRecord(i, record);
+                output.writeRecord(record, 0);
+
+                crc.reset();
+                crc.update(record, 0, recordLength);
+                checksum += crc.getValue();
+            }
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        System.out.printf(Locale.ENGLISH, "Thread %d generated %d records in %.7f seconds (%.1f MB/s)%n",
+                PCJ.myId(), localRecords, seconds, localRecords * recordLength / seconds / 1e6);
+
+        PCJ.asyncPut(checksum, 0, Vars.checksums, PCJ.myId());
+        if (PCJ.myId() == 0) {
+            PCJ.waitFor(Vars.checksums, PCJ.threadCount());
+            long totalChecksum = 0;
+            for (long threadChecksum : checksums) {
+                totalChecksum += threadChecksum;
+            }
+            double totalSeconds = (System.nanoTime() - startTime) / 1e9;
+            System.out.printf(Locale.ENGLISH, "Generated %d records in %.7f seconds (%.1f MB/s)%n",
+                    totalRecords, totalSeconds, totalRecords * recordLength / totalSeconds / 1e6);
+            System.out.printf(Locale.ENGLISH, "Checksum: %016x%n", totalChecksum);
+        }
+    }
+
+    /**
+     * Fills record with: 10-byte key, 2 bytes 0x00 0x11, record number as 32 hex digits, 4 bytes 0x88,
+     * 48 bytes of filler and 4 bytes 0xCC.
+     */
+    static void generateRecord(long recordNumber, byte[] record) {
+        long high = mix(recordNumber * 2);
+        long low = mix(recordNumber * 2 + 1);
+        for (int i = 0; i < 8; ++i) {
+            record[i] = (byte) (high >>> (56 - 8 * i));
+        }
+        record[8] = (byte) (low >>> 56);
+        record[9] = (byte) (low >>> 48);
+
+        int pos = keyLength;
+        record[pos++] = 0x00;
+        record[pos++] = 0x11;
+        for (int i = 0; i < 16; ++i) {
+            record[pos++] = '0';
+        }
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            record[pos++] = hexDigits[(int) (recordNumber >>> shift) & 0xF];
+        }
+        for (int i = 0; i < 4; ++i) {
+            record[pos++] = (byte) 0x88;
+        }
+        for (int i = 0; i < 48; ++i) {
+            record[pos++] = (byte) ('A' + (int) ((low >>> (i % 12 * 4)) & 0xF) + (i / 12) * 4);
+        }
+        for (int i = 0; i < 4; ++i) {
+            record[pos++] = (byte) 0xCC;
+        }
+    }
+
+    /**
+     * SplitMix64 finalizer, giving well distributed value for any record number.
+     */
+    private static long mix(long z) {
+        z += 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -1,24 +1,46 @@
 package org.pcj.examples;
 
-import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.LinkedList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.Objects;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+import java.util.function.UnaryOperator;
+import java.util.zip.CRC32;
 import java.util.stream.IntStream;
+import org.pcj.AsyncTask;
 import org.pcj.PCJ;
 import org.pcj.PcjFuture;
 import org.pcj.RegisterStorage;
@@ -28,19 +50,46 @@ import org.pcj.Storage;
 @RegisterStorage(PcjTeraSort.Vars.class)
 public class PcjTeraSort implements StartPoint {
 
+    private static final int recordLength = 100;
+    private static final int keyLength = 10;
+    private static final int readChunkRecords = 10_000;
+
     @Storage(PcjTeraSort.class)
     enum Vars {
-        sequencer, pivots, buckets
+        pivots, sampleRuns, buckets, counts, outputOffset, receiver, streamDone, metrics, incomingCounts, outgoingOffsets, received,
+        resumable, resume, reuseOutput
     }
 
-    private boolean sequencer;
-    @SuppressWarnings("serializable")
-    private List<Element> pivots = new ArrayList<>();
-    private Element[][] buckets;
+    private SampleSet pivots;
+    private SampleSet[] sampleRuns = new SampleSet[Integer.SIZE];
+    private byte[][][] buckets;
+    private long[] counts;
+    private long outputOffset;
+    private StreamReceiver receiver;
+    private boolean[] streamDone;
+    private Metrics[] metrics;
+    private long[] incomingCounts;
+    private long[] outgoingOffsets;
+    private RecordBuffer received;
+    private boolean[] resumable;
+    private boolean resume;
+    private boolean reuseOutput;
+
+    private Metrics threadMetrics;
+    private boolean compressExchange;
+    private long startTime;
+    private long readingStart;
+    private long sendingStart;
+    private long sortingStart;
 
     public static void main(String[] args) throws IOException {
         if (args.length < 4) {
             System.err.println("Parameters: <input-file> <output-file> <total-pivots> <nodes-file>");
+            System.err.println("Options (system properties): -DsortEngine=radix|merge|keys -DsortThreads=<n> -DpivotMode=even|histogram"
+                                       + " -Dexchange=bulk|streaming|direct -DbatchRecords=<n> -DmaxInFlight=<n>"
+                                       + " -DreadWindow=<records> -DcachedWindows=<n> -DreadAhead=true|false"
+                                       + " -DspillDir=<dir> -DmemoryRecords=<n> -DmetricsFile=<file.json|file.csv>"
+                                       + " -DsinglePass=true|false -Dcompress=true|false -DcheckpointDir=<dir>");
             return;
         }
 //try (DumpInfo dumpInfo = new DumpInfo()) {
@@ -48,6 +97,23 @@ public class PcjTeraSort implements StartPoint {
                 .addProperty("inputFile", args[0])
                 .addProperty("outputFile", args[1])
                 .addProperty("sampleSize", args[2])
+                .addProperty("pivotMode", System.getProperty("pivotMode", "even"))
+                .addProperty("sortEngine", System.getProperty("sortEngine", "radix"))
+                .addProperty("sortThreads", System.getProperty("sortThreads", "1"))
+                .addProperty("exchange", System.getProperty("exchange", "bulk"))
+                .addProperty("batchRecords", System.getProperty("batchRecords", "20000"))
+                .addProperty("maxInFlight", System.getProperty("maxInFlight", "4"))
+                .addProperty("readWindow", System.getProperty("readWindow",
+                        String.valueOf(TeraFileInput.defaultWindowRecords)))
+                .addProperty("cachedWindows", System.getProperty("cachedWindows",
+                        String.valueOf(TeraFileInput.defaultCachedWindows)))
+                .addProperty("readAhead", System.getProperty("readAhead", "false"))
+                .addProperty("spillDir", System.getProperty("spillDir", ""))
+                .addProperty("memoryRecords", System.getProperty("memoryRecords", "5000000"))
+                .addProperty("metricsFile", System.getProperty("metricsFile", ""))
+                .addProperty("singlePass", System.getProperty("singlePass", "false"))
+                .addProperty("compress", System.getProperty("compress", "false"))
+                .addProperty("checkpointDir", System.getProperty("checkpointDir", ""))
                 .addNodes(new File(args[3]))
                 .deploy();
 //}
@@ -56,155 +122,313 @@ public class PcjTeraSort implements StartPoint {
     @Override
     public void main() throws Throwable {
         if (PCJ.myId() == 0) {
-            PCJ.put(true, 0, Vars.sequencer);
+            counts = new long[PCJ.threadCount()];
+            metrics = new Metrics[PCJ.threadCount()];
+            resumable = new boolean[PCJ.threadCount()];
         }
 
         String inputFile = PCJ.getProperty("inputFile");
         String outputFile = PCJ.getProperty("outputFile");
         int sampleSize = Integer.parseInt(PCJ.getProperty("sampleSize"));
+        boolean histogramPivots = "histogram".equals(PCJ.getProperty("pivotMode"));
+        String sortEngine = PCJ.getProperty("sortEngine");
+        int sortThreads = Integer.parseInt(PCJ.getProperty("sortThreads"));
+        boolean streaming = "streaming".equals(PCJ.getProperty("exchange"));
+        boolean direct = "direct".equals(PCJ.getProperty("exchange"));
+        int batchRecords = Integer.parseInt(PCJ.getProperty("batchRecords"));
+        int maxInFlight = Integer.parseInt(PCJ.getProperty("maxInFlight"));
+        int readWindow = Integer.parseInt(PCJ.getProperty("readWindow"));
+        int cachedWindows = Integer.parseInt(PCJ.getProperty("cachedWindows"));
+        boolean readAhead = Boolean.parseBoolean(PCJ.getProperty("readAhead"));
+        String spillDir = PCJ.getProperty("spillDir");
+        int memoryRecords = Integer.parseInt(PCJ.getProperty("memoryRecords"));
+        String metricsFile = PCJ.getProperty("metricsFile");
+        boolean singlePass = Boolean.parseBoolean(PCJ.getProperty("singlePass"));
+        compressExchange = Boolean.parseBoolean(PCJ.getProperty("compress"));
+        String checkpointDir = PCJ.getProperty("checkpointDir");
+        boolean spilling = !spillDir.isEmpty();
+        if (spilling) {
+            // received data has to be streamed to be spilled in bounded runs
+            streaming = true;
+            direct = false;
+            sortThreads = 1;
+            // and local portion of input is not expected to fit in memory
+            singlePass = false;
+        }
+        if (direct) {
+            // all received records are sorted together in single buffer
+            sortThreads = 1;
+        }
 
         System.out.printf(Locale.ENGLISH, "Input file: %s%n", inputFile);
         System.out.printf(Locale.ENGLISH, "Output file: %s%n", outputFile);
+        System.out.printf(Locale.ENGLISH, "Read window: %d records, %d cached, read-ahead %s%n",
+                readWindow, cachedWindows, readAhead ? "on" : "off");
         System.out.printf(Locale.ENGLISH, "Sample size is: %d%n", sampleSize);
+        if (singlePass) {
+            System.out.println("Single pass: local data is kept in memory after sampling");
+        }
+        System.out.printf(Locale.ENGLISH, "Pivot mode: %s%n", histogramPivots ? "histogram" : "even");
+        System.out.printf(Locale.ENGLISH, "Sort engine: %s with %d thread(s)%n", sortEngine, sortThreads);
+        if (streaming) {
+            System.out.printf(Locale.ENGLISH, "Streaming exchange: %d records per batch, %d batches in flight%n",
+                    batchRecords, maxInFlight);
+        }
+        if (direct) {
+            System.out.printf(Locale.ENGLISH, "Direct exchange: %d records per batch, %d batches in flight%n",
+                    batchRecords, maxInFlight);
+        }
+        if (compressExchange) {
+            System.out.println("Exchanged records are compressed");
+        }
+        if (spilling) {
+            System.out.printf(Locale.ENGLISH, "Spilling sorted runs of %d records to: %s%n", memoryRecords, spillDir);
+        }
 
-        new File(outputFile).delete();
-
-        long startTime = System.nanoTime();
-        long readingStart = 0;
-        long sendingStart = 0;
+        Checkpoint checkpoint = null;
+        if (!checkpointDir.isEmpty()) {
+            System.out.printf(Locale.ENGLISH, "Checkpoints in: %s%n", checkpointDir);
+            checkpoint = new Checkpoint(checkpointDir, PCJ.myId(), runKey(inputFile, outputFile, sampleSize, histogramPivots));
+            // output file is checked before it is pre-sized, as only file completed by previous run can be reused
+            boolean outputComplete = PCJ.myId() == 0
+                                             && new File(outputFile).length() == new File(inputFile).length() / recordLength * recordLength;
+            resume = agreeOnResume(checkpoint.partitionDone(), outputComplete);
+        }
+        if (!reuseOutput) {
+            new File(outputFile).delete();
+        }
 
-        try (TeraFileInput input = new TeraFileInput(inputFile)) {
-            long totalElements = input.length();
+        startTime = System.nanoTime();
+        threadMetrics = new Metrics(PCJ.myId(), PCJ.threadCount(), startTime);
+
+        List<RunCursor> runCursors = new ArrayList<>();
+        List<SpilledRun> spilledRuns = Collections.emptyList();
+        long sortedCount = 0;
+        if (resume) {
+            SpilledRun partition = checkpoint.partition();
+            runCursors.add(partition.cursor());
+            sortedCount = partition.size();
+            System.out.printf(Locale.ENGLISH, "Thread %d resumed from checkpoint with %d sorted elements%n",
+                    PCJ.myId(), sortedCount);
+            timeline("resumed");
+        } else {
+            try (TeraFileInput input = new TeraFileInput(inputFile, readWindow, cachedWindows, readAhead)) {
+                long totalElements = input.length();
+
+                long localElementsCount = totalElements / PCJ.threadCount();
+                long reminderElements = totalElements - localElementsCount * PCJ.threadCount();
+                if (PCJ.myId() < reminderElements) {
+                    ++localElementsCount;
+                }
 
-            long localElementsCount = totalElements / PCJ.threadCount();
-            long reminderElements = totalElements - localElementsCount * PCJ.threadCount();
-            if (PCJ.myId() < reminderElements) {
-                ++localElementsCount;
-            }
+                if (PCJ.myId() == 0) {
+                    System.out.printf(Locale.ENGLISH, "Total elements to sort: %d%n", totalElements);
+                    System.out.printf(Locale.ENGLISH, "Each thread reads about: %d%n", localElementsCount);
+                }
 
-            if (PCJ.myId() == 0) {
-                System.out.printf(Locale.ENGLISH, "Total elements to sort: %d%n", totalElements);
-                System.out.printf(Locale.ENGLISH, "Each thread reads about: %d%n", localElementsCount);
-            }
+                // every thread read own portion of input file
+                long startElement = PCJ.myId() * (totalElements / PCJ.threadCount()) + Math.min(PCJ.myId(), reminderElements);
+                long endElement = startElement + localElementsCount;
+
+                // generate pivots (a unique set of keys at random positions: k0<k1<k2<...<k(n-1))
+                int samplesByThread = (sampleSize + PCJ.threadCount() - (PCJ.myId() + 1)) / PCJ.threadCount();
+
+                // in single pass mode own portion is read sequentially once and samples are taken from memory
+                RecordBuffer localData = null;
+                if (singlePass) {
+                    localData = new RecordBuffer(localElementsCount);
+                    input.seek(startElement);
+                    for (long i = 0; i < localElementsCount; ) {
+                        i += input.readRecords(localData, (int) Math.min(RecordBuffer.pageRecords, localElementsCount - i));
+                    }
+                    threadMetrics.readRecords += localElementsCount;
+                }
 
-            // every thread read own portion of input file
-            long startElement = PCJ.myId() * (totalElements / PCJ.threadCount()) + Math.min(PCJ.myId(), reminderElements);
-            long endElement = startElement + localElementsCount;
+                long[] samplePositions = new long[samplesByThread];
+                for (int i = 0; i < samplesByThread; ++i) {
+                    samplePositions[i] = startElement + i * (localElementsCount / samplesByThread);
+                }
+                RecordBuffer sampleRecords;
+                if (localData != null) {
+                    sampleRecords = new RecordBuffer(samplesByThread);
+                    for (int i = 0; i < samplesByThread; ++i) {
+                        sampleRecords.append(localData, (int) (samplePositions[i] - startElement));
+                    }
+                } else {
+                    // samples are read from the end of the slice, so the windows left in cache for the
+                    // partition pass are the first ones of the slice
+                    sampleRecords = RecordBuffer.allocate(samplesByThread);
+                    RecordBuffer sample = new RecordBuffer(1);
+                    for (int i = samplesByThread - 1; i >= 0; --i) {
+                        sample.clear();
+                        input.seek(samplePositions[i]);
+                        input.readRecord(sample);
+                        sampleRecords.put(i, sample);
+                    }
+                }
+                SampleSet localSamples = new SampleSet(sampleRecords.toBytes(), samplePositions);
+                if (localData == null) {
+                    threadMetrics.readRecords += samplesByThread + localElementsCount;
+                }
+                timeline("read_samples");
+
+                SampleSet samples = mergeSamples(localSamples.sorted());
+                if (PCJ.myId() == 0) {
+                    if (histogramPivots) {
+                        pivots = histogramSplitters(samples, PCJ.threadCount());
+                    } else {
+                        pivots = evenSplitters(samples, PCJ.threadCount());
+                    }
+
+                    System.out.printf(Locale.ENGLISH, "Number of pivots: %d%n", pivots.size());
+                    PCJ.broadcast(pivots, Vars.pivots);
+                }
 
-            // generate pivots (a unique set of keys at random positions: k0<k1<k2<...<k(n-1))
-            int samplesByThread = (sampleSize + PCJ.threadCount() - (PCJ.myId() + 1)) / PCJ.threadCount();
+                PCJ.waitFor(Vars.pivots);
+                timeline("get_pivots");
+                readingStart = System.nanoTime();
+
+                int senders = PCJ.myId() < pivots.size() + 1 ? PCJ.threadCount() : 0;
+                if (streaming) {
+                    RunSpiller spiller = spilling ? new RunSpiller(spillDir, sortEngine, memoryRecords) : null;
+                    receiver = new StreamReceiver(senders, sortThreads > 1, spiller);
+                    streamDone = new boolean[senders];
+                } else if (direct) {
+                    incomingCounts = new long[senders];
+                    streamDone = new boolean[senders];
+                    received = new RecordBuffer(0);
+                } else {
+                    buckets = new byte[senders][][];
+                }
+                PcjFuture<Void> bucketsBarrier = PCJ.asyncBarrier();
 
-            for (int i = 0; i < samplesByThread; ++i) {
-                input.seek(startElement + i * (localElementsCount / samplesByThread));
-                Element pivot = input.readElement();
-                pivots.add(pivot);
+                ChunkSource source;
+                if (localData != null) {
+                    source = memoryChunks(localData.toPages());
+                    localData = null;
+                } else {
+                    input.seek(startElement);
+                    source = fileChunks(input, localElementsCount);
+                }
+                if (streaming) {
+                    streamBuckets(source, startElement, bucketsBarrier, batchRecords, maxInFlight);
+                } else if (direct) {
+                    sendDirect(source, localSamples, startElement, localElementsCount, bucketsBarrier,
+                            batchRecords, maxInFlight);
+                } else {
+                    sendBuckets(source, localSamples, startElement, localElementsCount, bucketsBarrier);
+                }
             }
-            System.out.println("TL:" + PCJ.myId() + "\tread_samples\t" + (System.nanoTime() - startTime) / 1e9);
-            PCJ.barrier();
-            if (PCJ.myId() == 0) {
-                pivots = PCJ.reduce((left, right) -> {
-                    left.addAll(right);
-                    return left;
-                }, Vars.pivots);
-
-                pivots = pivots.stream().distinct().sorted().collect(Collectors.toList()); // unique, sort
-                int pivotsSize = pivots.size();
-                int seekValue = Math.max(pivotsSize / PCJ.threadCount(), 1);
-                pivots = IntStream.range(1, Math.min(PCJ.threadCount(), pivotsSize))
-                                 .map(i -> i * seekValue)
-                                 .mapToObj(pivots::get)
-                                 .collect(Collectors.toList());
 
-
-                System.out.printf(Locale.ENGLISH, "Number of pivots: %d%n", pivots.size());
-                PCJ.broadcast(pivots, Vars.pivots);
+            // sort buckets
+            List<SortedRun> sortedRuns;
+            if (streaming || direct) {
+                sortedRuns = sortReceived(Vars.streamDone, streamDone.length, this::takeStreamed, sortEngine, sortThreads);
+            } else {
+                sortedRuns = sortReceived(Vars.buckets, buckets.length, this::takeBucket, sortEngine, sortThreads);
             }
-
-            PCJ.waitFor(Vars.pivots);
-            System.out.println("TL:" + PCJ.myId() + "\tget_pivots\t" + (System.nanoTime() - startTime) / 1e9);
-            readingStart = System.nanoTime();
-
-            buckets = new Element[PCJ.myId() < pivots.size() + 1 ? PCJ.threadCount() : 0][];
-            PcjFuture<Void> bucketsBarrier = PCJ.asyncBarrier();
-
-            @SuppressWarnings("unchecked")
-            List<Element>[] localBuckets = (List<Element>[]) new List[pivots.size() + 1];
-            for (int i = 0; i < localBuckets.length; ++i) {
-                localBuckets[i] = new LinkedList<>();
+            for (SortedRun sortedRun : sortedRuns) {
+                runCursors.add(sortedRun.cursor());
+                sortedCount += sortedRun.size();
             }
-
-            System.out.printf(Locale.ENGLISH, "Thread %d started reading data%n", PCJ.myId());
-
-            // for each element in own data: put element in proper bucket
-            input.seek(startElement);
-            for (long i = startElement; i < endElement; ++i) {
-                Element e = input.readElement();
-                int bucketNo = Collections.binarySearch(pivots, e);
-                if (bucketNo < 0) {
-                    bucketNo = -(bucketNo + 1);
+            if (receiver != null) {
+                spilledRuns = receiver.spilledRuns();
+            }
+            for (SpilledRun spilledRun : spilledRuns) {
+                runCursors.add(spilledRun.cursor());
+                sortedCount += spilledRun.size();
+            }
+            if (receiver != null) {
+                for (int i = 0; i < streamDone.length; ++i) {
+                    threadMetrics.receivedBytes[i] = receiver.received(i) * recordLength;
                 }
-                localBuckets[bucketNo].add(e);
             }
-            System.out.printf(Locale.ENGLISH, "Thread %d finished reading data in %.7f seconds%n",
-                    PCJ.myId(), (System.nanoTime() - readingStart) / 1e9);
-
-            System.out.println("TL:" + PCJ.myId() + "\tread_data\t" + (System.nanoTime() - startTime) / 1e9);
-            bucketsBarrier.get(); // be sure that buckets variable is set on each thread
-            sendingStart = System.nanoTime();
-
-            System.out.printf(Locale.ENGLISH, "Thread %d started sending buckets data%n", PCJ.myId());
-            for (int i = 0; i < localBuckets.length; i++) {
-                Element[] bucket = localBuckets[i].toArray(new Element[0]);
-
-                System.err.printf(Locale.ENGLISH, "Thread %3d will be sending to %3d - %5d elements%n",
-                        PCJ.myId(), i, bucket.length);
-
-                if (PCJ.myId() != i) {
-                    PCJ.asyncPut(bucket, i, Vars.buckets, PCJ.myId());
-                } else {
-                    PCJ.putLocal(bucket, Vars.buckets, PCJ.myId());
+            threadMetrics.sortedRecords = sortedCount;
+            if (direct) {
+                for (int i = 0; i < incomingCounts.length; ++i) {
+                    threadMetrics.receivedBytes[i] = incomingCounts[i] * recordLength;
                 }
             }
-            System.out.printf(Locale.ENGLISH, "Thread %d finished sending data in %.7f seconds%n",
+            buckets = null;
+            receiver = null;
+            received = null;
+
+            System.out.printf(Locale.ENGLISH, "Thread %d finished sorting %d elements in %.7f seconds%n",
                     PCJ.myId(),
-                    (System.nanoTime() - sendingStart) / 1e9);
-            System.out.println("TL:" + PCJ.myId() + "\tsent_data\t" + (System.nanoTime() - startTime) / 1e9);
+                    sortedCount,
+                    (System.nanoTime() - sortingStart) / 1e9);
+            timeline("sorted_data");
+
+            if (checkpoint != null) {
+                List<RunCursor> partitionCursors = new ArrayList<>();
+                for (SortedRun sortedRun : sortedRuns) {
+                    partitionCursors.add(sortedRun.cursor());
+                }
+                for (SpilledRun spilledRun : spilledRuns) {
+                    partitionCursors.add(spilledRun.cursor());
+                }
+                checkpoint.savePartition(partitionCursors, sortedCount);
+                timeline("checkpoint_partition");
+            }
         }
 
-        // sort buckets
-        PCJ.waitFor(Vars.buckets, buckets.length);
-        System.out.println("TL:" + PCJ.myId() + "\twaitfor_data\t" + (System.nanoTime() - startTime) / 1e9);
-        long sortingStart = System.nanoTime();
-
-        System.out.printf(Locale.ENGLISH, "Thread %d started sorting bucket%n", PCJ.myId());
-        Element[] sortedBuckets = Arrays.stream(buckets).flatMap(Arrays::stream).toArray(Element[]::new);
-        Arrays.sort(sortedBuckets);
-
-        System.out.printf(Locale.ENGLISH, "Thread %d finished sorting %d elements in %.7f seconds%n",
-                PCJ.myId(),
-                sortedBuckets.length,
-                (System.nanoTime() - sortingStart) / 1e9);
-        System.out.println("TL:" + PCJ.myId() + "\tsorted_data\t" + (System.nanoTime() - startTime) / 1e9);
+        // compute own offset in output file (exclusive prefix sum of sorted counts)
+        PCJ.asyncPut(sortedCount, 0, Vars.counts, PCJ.myId());
+        if (PCJ.myId() == 0) {
+            PCJ.waitFor(Vars.counts, PCJ.threadCount());
+            long offset = 0;
+            for (int i = 0; i < PCJ.threadCount(); ++i) {
+                long count = counts[i];
+                counts[i] = offset;
+                offset += count;
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(outputFile, "rw")) {
+                raf.setLength(offset * recordLength);
+            }
+            for (int i = 0; i < PCJ.threadCount(); ++i) {
+                PCJ.asyncPut(counts[i], i, Vars.outputOffset);
+            }
+        }
 
         // save into file
-        PCJ.waitFor(Vars.sequencer);
-        System.out.println("TL:" + PCJ.myId() + "\twaitfor_saving\t" + (System.nanoTime() - startTime) / 1e9);
+        PCJ.waitFor(Vars.outputOffset);
+        timeline("waitfor_saving");
         long savingStart = System.nanoTime();
 
-        System.out.printf(Locale.ENGLISH, "Thread %d started saving buckets to file%n", PCJ.myId());
-        try (TeraFileOutput output = new TeraFileOutput(outputFile)) {
-            output.writeElements(sortedBuckets);
+        if (reuseOutput && checkpoint.outputDone(outputFile, outputOffset, sortedCount)) {
+            System.out.printf(Locale.ENGLISH, "Thread %d skips saving, its elements are already in file at element %d%n",
+                    PCJ.myId(), outputOffset);
+        } else {
+            System.out.printf(Locale.ENGLISH, "Thread %d started saving buckets to file at element %d%n",
+                    PCJ.myId(), outputOffset);
+            try (TeraFileOutput output = new TeraFileOutput(outputFile, outputOffset)) {
+                output.writeRuns(runCursors);
+                if (checkpoint != null) {
+                    checkpoint.saveOutput(outputOffset, output.checksum());
+                }
+            }
+        }
+        for (SpilledRun spilledRun : spilledRuns) {
+            spilledRun.delete();
         }
-        PCJ.put(true, (PCJ.myId() + 1) % PCJ.threadCount(), Vars.sequencer);
         System.out.printf(Locale.ENGLISH, "Thread %d finished saving %d elements in %.7f seconds%n",
                 PCJ.myId(),
-                sortedBuckets.length,
+                sortedCount,
                 (System.nanoTime() - savingStart) / 1e9);
-        System.out.println("TL:" + PCJ.myId() + "\tsaved_data\t" + (System.nanoTime() - startTime) / 1e9);
+        timeline("saved_data");
+        threadMetrics.writtenRecords = sortedCount;
+        if (compressExchange) {
+            System.out.printf(Locale.ENGLISH, "Thread %d compressed %d bytes to %d bytes (ratio %.2f)%n",
+                    PCJ.myId(), threadMetrics.uncompressedBytes, threadMetrics.compressedBytes,
+                    threadMetrics.compressedBytes > 0
+                    ? (double) threadMetrics.uncompressedBytes / threadMetrics.compressedBytes : 1.0);
+        }
+        threadMetrics.finish();
+        PCJ.asyncPut(threadMetrics, 0, Vars.metrics, PCJ.myId());
+        PCJ.barrier();
 
         // display execution time
         if (PCJ.myId() == 0) {
-            PCJ.waitFor(Vars.sequencer);
             long stopTime = System.nanoTime();
             System.out.printf(Locale.ENGLISH, "Start to Pivots completed:  %17.9f%n", (readingStart - startTime) / 1e9);
             System.out.printf(Locale.ENGLISH, "Start to Reading completed: %17.9f%n", (sendingStart - startTime) / 1e9);
@@ -213,193 +437,2202 @@ public class PcjTeraSort implements StartPoint {
             System.out.printf(Locale.ENGLISH, "Start to Saving completed:  %17.9f%n", (stopTime - startTime) / 1e9);
             System.out.printf(Locale.ENGLISH, "Total saving time: %.7f seconds%n", (stopTime - savingStart) / 1e9);
             System.out.printf(Locale.ENGLISH, "Total execution time: %.7f seconds%n", (stopTime - startTime) / 1e9);
+
+            PCJ.waitFor(Vars.metrics, PCJ.threadCount());
+            MetricsSummary summary = new MetricsSummary(metrics, stopTime - startTime);
+            summary.print();
+            if (!metricsFile.isEmpty()) {
+                summary.write(Paths.get(metricsFile));
+                System.out.printf(Locale.ENGLISH, "Metrics written to: %s%n", metricsFile);
+            }
         }
     }
 
-    public static class TeraFileInput implements AutoCloseable {
-        private static final int recordLength = 100;
+    /**
+     * Returns true on every thread only when all threads are able to resume from their checkpoints.
+     * Also sets reuseOutput, when resuming and thread 0 found output file of previous run complete.
+     */
+    private boolean agreeOnResume(boolean canResume, boolean outputComplete) {
+        PCJ.barrier(); // be sure that resumable variable is set on thread 0
+        PCJ.asyncPut(canResume, 0, Vars.resumable, PCJ.myId());
+        if (PCJ.myId() == 0) {
+            PCJ.waitFor(Vars.resumable, PCJ.threadCount());
+            boolean all = true;
+            for (boolean threadResumable : resumable) {
+                all &= threadResumable;
+            }
+            PCJ.broadcast(all && outputComplete, Vars.reuseOutput);
+            PCJ.broadcast(all, Vars.resume);
+        }
+        PCJ.waitFor(Vars.reuseOutput);
+        PCJ.waitFor(Vars.resume);
+        return resume;
+    }
 
-        private static final int keyLength = 10;
-        private static final int valueLength = recordLength - keyLength;
-        private final FileChannel input;
-        private final byte[] tempKeyBytes;
-        private final byte[] tempValueBytes;
-        private MappedByteBuffer mappedByteBuffer;
-        private long minElementPos;
-        private long maxElementPos;
+    /**
+     * Identifies run by everything that decides which records end up on which thread.
+     */
+    private static String runKey(String inputFile, String outputFile, int sampleSize, boolean histogramPivots) {
+        File input = new File(inputFile);
+        return String.join("|",
+                input.getAbsolutePath(),
+                String.valueOf(input.length()),
+                String.valueOf(input.lastModified()),
+                new File(outputFile).getAbsolutePath(),
+                String.valueOf(PCJ.threadCount()),
+                String.valueOf(sampleSize),
+                histogramPivots ? "histogram" : "even");
+    }
 
-        public TeraFileInput(String inputFile) throws FileNotFoundException {
-            RandomAccessFile raf = new RandomAccessFile(inputFile, "r");
-            input = raf.getChannel();
-            tempKeyBytes = new byte[keyLength];
-            tempValueBytes = new byte[valueLength];
+    private void timeline(String phase) {
+        long now = System.nanoTime();
+        System.out.println("TL:" + PCJ.myId() + "\t" + phase + "\t" + (now - startTime) / 1e9);
+        threadMetrics.mark(phase, now);
+    }
 
-            mappedByteBuffer = null;
-            minElementPos = -1;
-            maxElementPos = -1;
+    /**
+     * Merges sorted samples up a binomial tree: thread receives sorted samples from threads myId + 2^k
+     * for each level k below its lowest set bit, merges them with own and passes the result to its parent.
+     * Returns all samples merged on thread 0, and partial result on other threads.
+     */
+    private SampleSet mergeSamples(SampleSet samples) {
+        int children = 0;
+        for (int step = 1; step < PCJ.threadCount() && (PCJ.myId() & step) == 0; step <<= 1) {
+            if (PCJ.myId() + step < PCJ.threadCount()) {
+                ++children;
+            }
+        }
+        PCJ.waitFor(Vars.sampleRuns, children);
+        for (int level = 0; level < children; ++level) {
+            samples = samples.merge(sampleRuns[level]);
+            sampleRuns[level] = null;
         }
+        if (PCJ.myId() != 0) {
+            int level = Integer.numberOfTrailingZeros(PCJ.myId());
+            PCJ.asyncPut(samples, PCJ.myId() - (1 << level), Vars.sampleRuns, level);
+        }
+        return samples;
+    }
 
-        @Override
-        public void close() throws Exception {
-            input.close();
+    /**
+     * Chooses evenly spaced pivots from unique sampled records. Records equal to pivot go to the pivot's bucket.
+     */
+    private static SampleSet evenSplitters(SampleSet samples, int threadCount) {
+        List<Integer> unique = new ArrayList<>();
+        for (int i = 0; i < samples.size(); ++i) {
+            if (i == 0 || samples.compareRecords(i - 1, i) != 0) {
+                unique.add(i);
+            }
         }
+        int seekValue = Math.max(unique.size() / threadCount, 1);
+        int[] chosen = IntStream.range(1, Math.min(threadCount, unique.size()))
+                               .map(i -> unique.get(i * seekValue))
+                               .toArray();
+        return samples.select(chosen, true);
+    }
 
-        public long length() throws IOException {
-            return input.size() / recordLength;
+    /**
+     * Chooses pivots at evenly spaced quantiles of all samples, including repeated records, ordered by record
+     * and then by record position. Key range of a heavy hitter is in this way split between several threads,
+     * with records equal to pivot divided by their position in input file.
+     */
+    private static SampleSet histogramSplitters(SampleSet samples, int threadCount) {
+        int n = samples.size();
+        for (int from = 0; from < n; ) {
+            int to = from + 1;
+            while (to < n && samples.compareKeys(from, to) == 0) {
+                ++to;
+            }
+            if ((long) (to - from) * threadCount > n) {
+                System.out.printf(Locale.ENGLISH, "Heavy key %s in %d of %d samples, spread over %d threads%n",
+                        samples.keyToString(from), to - from, n, (long) (to - from) * threadCount / n + 1);
+            }
+            from = to;
         }
 
-        public void seek(long pos) throws IOException {
-            if (minElementPos <= pos && pos < maxElementPos) {
-                mappedByteBuffer.position((int) ((pos - minElementPos) * recordLength));
+        int[] chosen = IntStream.range(1, threadCount)
+                               .map(i -> (int) ((long) i * n / threadCount))
+                               .filter(i -> i > 0)
+                               .distinct()
+                               .toArray();
+        return samples.select(chosen, false);
+    }
+
+    /**
+     * Reads whole own portion of input, puts records in buckets and sends each bucket at once.
+     */
+    private void sendBuckets(ChunkSource source, SampleSet localSamples, long startElement,
+                             long localElementsCount, PcjFuture<Void> bucketsBarrier) throws IOException {
+        RecordBuffer[] localBuckets = partition(source, localSamples, startElement, localElementsCount);
+        bucketsBarrier.get(); // be sure that buckets variable is set on each thread
+        sendingStart = System.nanoTime();
+
+        System.out.printf(Locale.ENGLISH, "Thread %d started sending buckets data%n", PCJ.myId());
+        for (int i = 0; i < localBuckets.length; i++) {
+            System.err.printf(Locale.ENGLISH, "Thread %3d will be sending to %3d - %5d elements%n",
+                    PCJ.myId(), i, localBuckets[i].size());
+
+            threadMetrics.sentBytes[i] = (long) localBuckets[i].size() * recordLength;
+            byte[][] bucket = localBuckets[i].toPages();
+            localBuckets[i] = null;
+
+            if (PCJ.myId() != i) {
+                if (compressExchange) {
+                    for (int page = 0; page < bucket.length; ++page) {
+                        bucket[page] = compress(bucket[page]);
+                    }
+                }
+                PCJ.asyncPut(bucket, i, Vars.buckets, PCJ.myId());
             } else {
-                mappedByteBuffer = null;
+                PCJ.putLocal(bucket, Vars.buckets, PCJ.myId());
+            }
+        }
+        System.out.printf(Locale.ENGLISH, "Thread %d finished sending data in %.7f seconds%n",
+                PCJ.myId(),
+                (System.nanoTime() - sendingStart) / 1e9);
+        timeline("sent_data");
+    }
+
+    /**
+     * Reads own data in chunks and appends every record to the bucket of its destination.
+     */
+    private RecordBuffer[] partition(ChunkSource source, SampleSet localSamples, long startElement,
+                                     long localElementsCount) throws IOException {
+        long[] expectedSizes = estimateBucketSizes(pivots, localSamples, localElementsCount);
+        RecordBuffer[] localBuckets = new RecordBuffer[pivots.size() + 1];
+        for (int i = 0; i < localBuckets.length; ++i) {
+            localBuckets[i] = new RecordBuffer(expectedSizes[i]);
+        }
+
+        System.out.printf(Locale.ENGLISH, "Thread %d started reading data%n", PCJ.myId());
+
+        // read own data in chunks and append every record to proper bucket
+        long chunkStart = startElement;
+        for (RecordBuffer chunk; (chunk = source.next(readChunkRecords)) != null; chunkStart += chunk.size()) {
+            for (int j = 0; j < chunk.size(); ++j) {
+                localBuckets[pivots.bucketOf(chunk, j, chunkStart + j)].append(chunk, j);
             }
-            input.position(pos * recordLength);
         }
+        System.out.printf(Locale.ENGLISH, "Thread %d finished reading data in %.7f seconds%n",
+                PCJ.myId(), (System.nanoTime() - readingStart) / 1e9);
+
+        timeline("read_data");
+        return localBuckets;
+    }
 
-        public Element readElement() throws IOException {
-            if (mappedByteBuffer == null || mappedByteBuffer.remaining() == 0) {
-                long size = Math.min(input.size() - input.position(), 1_000_000 * recordLength);
-                mappedByteBuffer = input.map(FileChannel.MapMode.READ_ONLY, input.position(), size);
-                minElementPos = input.position() / recordLength;
-                maxElementPos = minElementPos + size / recordLength;
+    /**
+     * Partitions own data like bulk exchange, but sends only bucket sizes at first. Every receiver
+     * allocates single buffer of exact size for all its records and sends back to every sender the offset
+     * at which the sender's records start, then senders put records directly at their offsets.
+     */
+    private void sendDirect(ChunkSource source, SampleSet localSamples, long startElement, long localElementsCount,
+                            PcjFuture<Void> bucketsBarrier, int batchRecords, int maxInFlight) throws IOException {
+        RecordBuffer[] localBuckets = partition(source, localSamples, startElement, localElementsCount);
+        outgoingOffsets = new long[localBuckets.length];
+        bucketsBarrier.get(); // be sure that incomingCounts variable is set on each thread
+        sendingStart = System.nanoTime();
+
+        for (int i = 0; i < localBuckets.length; i++) {
+            threadMetrics.sentBytes[i] = (long) localBuckets[i].size() * recordLength;
+            PCJ.asyncPut((long) localBuckets[i].size(), i, Vars.incomingCounts, PCJ.myId());
+        }
+        if (incomingCounts.length > 0) {
+            PCJ.waitFor(Vars.incomingCounts, incomingCounts.length);
+            long[] offsets = new long[incomingCounts.length];
+            long total = 0;
+            for (int i = 0; i < incomingCounts.length; ++i) {
+                offsets[i] = total;
+                total += incomingCounts[i];
+            }
+            received = RecordBuffer.allocate(total);
+            for (int i = 0; i < offsets.length; ++i) {
+                PCJ.asyncPut(offsets[i], i, Vars.outgoingOffsets, PCJ.myId());
+            }
+        }
+        PCJ.waitFor(Vars.outgoingOffsets, localBuckets.length);
+
+        System.out.printf(Locale.ENGLISH, "Thread %d started sending buckets data%n", PCJ.myId());
+        Deque<PcjFuture<Void>> inFlight = new ArrayDeque<>();
+        List<PcjFuture<Void>> doneFutures = new ArrayList<>();
+        for (int k = 0; k < localBuckets.length; ++k) {
+            // start with different destination on every thread
+            int i = (PCJ.myId() + k) % localBuckets.length;
+            RecordBuffer bucket = localBuckets[i];
+            localBuckets[i] = null;
+            int offset = (int) outgoingOffsets[i];
+            if (i == PCJ.myId()) {
+                received.put(offset, bucket);
+                PCJ.putLocal(true, Vars.streamDone, PCJ.myId());
+                continue;
             }
-            mappedByteBuffer.get(tempKeyBytes);
-            mappedByteBuffer.get(tempValueBytes);
+            for (int from = 0; from < bucket.size(); ) {
+                int count = Math.min(batchRecords, bucket.size() - from);
+                while (inFlight.size() >= maxInFlight) {
+                    inFlight.poll().get();
+                }
+                byte[] records = bucket.toBytes(from, count);
+                if (compressExchange) {
+                    records = compress(records);
+                }
+                inFlight.add(PCJ.asyncAt(i, new DirectTask(offset + from, records, compressExchange)));
+                from += count;
+            }
+            while (!inFlight.isEmpty()) {
+                inFlight.poll().get();
+            }
+            doneFutures.add(PCJ.asyncPut(true, i, Vars.streamDone, PCJ.myId()));
+        }
+        doneFutures.forEach(PcjFuture::get);
+
+        System.out.printf(Locale.ENGLISH, "Thread %d finished sending data in %.7f seconds%n",
+                PCJ.myId(),
+                (System.nanoTime() - sendingStart) / 1e9);
+        timeline("sent_data");
+    }
 
-            input.position(input.position() + recordLength);
+    /**
+     * Estimates number of records in each local bucket from the fraction of local samples that falls
+     * into the bucket, with some slack, so that bucket buffers rarely need to grow.
+     */
+    private static long[] estimateBucketSizes(SampleSet splitters, SampleSet localSamples, long localElementsCount) {
+        long[] sizes = new long[splitters.size() + 1];
+        if (localSamples.size() == 0) {
+            Arrays.fill(sizes, localElementsCount / sizes.length);
+            return sizes;
+        }
+        RecordBuffer sampleRecords = localSamples.records();
+        for (int i = 0; i < localSamples.size(); ++i) {
+            ++sizes[splitters.bucketOf(sampleRecords, i, localSamples.position(i))];
+        }
+        for (int i = 0; i < sizes.length; ++i) {
+            long expected = (long) (sizes[i] * 1.1 * localElementsCount / localSamples.size()) + 16;
+            sizes[i] = Math.min(expected, localElementsCount);
+        }
+        return sizes;
+    }
 
-            return new Element(new Text(tempKeyBytes), new Text(tempValueBytes));
+    /**
+     * Reads own portion of input in chunks and ships records to their destinations in fixed-size batches
+     * as soon as the batches fill up, so reading, partitioning and communication overlap.
+     */
+    private void streamBuckets(ChunkSource source, long startElement, PcjFuture<Void> bucketsBarrier,
+                               int batchRecords, int maxInFlight) throws IOException {
+        bucketsBarrier.get(); // be sure that receivers are set on each thread
+        sendingStart = System.nanoTime();
+
+        System.out.printf(Locale.ENGLISH, "Thread %d started streaming data%n", PCJ.myId());
+        BatchSender sender = new BatchSender(pivots.size() + 1, batchRecords, maxInFlight,
+                compressExchange ? this::compress : null);
+        long chunkStart = startElement;
+        for (RecordBuffer chunk; (chunk = source.next(batchRecords)) != null; chunkStart += chunk.size()) {
+            for (int j = 0; j < chunk.size(); ++j) {
+                sender.add(pivots.bucketOf(chunk, j, chunkStart + j), chunk, j);
+            }
+        }
+        timeline("read_data");
+        sender.finish();
+        for (int i = 0; i <= pivots.size(); ++i) {
+            threadMetrics.sentBytes[i] = sender.sent(i) * recordLength;
         }
+
+        System.out.printf(Locale.ENGLISH, "Thread %d finished streaming data in %.7f seconds%n",
+                PCJ.myId(),
+                (System.nanoTime() - sendingStart) / 1e9);
+        timeline("sent_data");
     }
 
-    public static class TeraFileOutput implements AutoCloseable {
-        private final BufferedOutputStream output;
+    /**
+     * Own records delivered in consecutive chunks, read from input file or taken from memory.
+     */
+    private interface ChunkSource {
+        /**
+         * Returns next chunk of about given number of records, or null when there are no more records.
+         * Returned chunk is valid until the next call.
+         */
+        RecordBuffer next(int chunkRecords) throws IOException;
+    }
+
+    private static ChunkSource fileChunks(TeraFileInput input, long count) {
+        return new ChunkSource() {
+            private RecordBuffer chunk;
+            private long remaining = count;
+
+            @Override
+            public RecordBuffer next(int chunkRecords) throws IOException {
+                if (remaining == 0) {
+                    return null;
+                }
+                if (chunk == null) {
+                    chunk = new RecordBuffer(chunkRecords);
+                }
+                chunk.clear();
+                remaining -= input.readRecords(chunk, (int) Math.min(chunkRecords, remaining));
+                return chunk;
+            }
+        };
+    }
 
-        public TeraFileOutput(String outputFile) throws FileNotFoundException {
-            output = new BufferedOutputStream(new FileOutputStream(outputFile, true));
+    /**
+     * Returns pages of records one by one, releasing every page once it is consumed.
+     */
+    private static ChunkSource memoryChunks(byte[][] pages) {
+        return new ChunkSource() {
+            private int index;
+
+            @Override
+            public RecordBuffer next(int chunkRecords) {
+                if (index > 0) {
+                    pages[index - 1] = null;
+                }
+                while (index < pages.length && pages[index].length == 0) {
+                    ++index;
+                }
+                if (index == pages.length) {
+                    return null;
+                }
+                return RecordBuffer.wrap(pages[index++]);
+            }
+        };
+    }
+
+    private Supplier<RecordBuffer> takeBucket(int sender) {
+        byte[][] bucket = buckets[sender];
+        if (bucket == null) {
+            return null;
+        }
+        buckets[sender] = null;
+        return () -> unpackBucket(sender, bucket);
+    }
+
+    private RecordBuffer unpackBucket(int sender, byte[][] bucket) {
+        if (compressExchange && sender != PCJ.myId()) {
+            for (int page = 0; page < bucket.length; ++page) {
+                bucket[page] = BatchCodec.decompress(bucket[page]);
+            }
         }
+        RecordBuffer records = RecordBuffer.wrap(bucket);
+        threadMetrics.receivedBytes[sender] = (long) records.size() * recordLength;
+        return records;
+    }
+
+    /**
+     * Compresses records sent to other thread and counts compressed bytes for reporting.
+     */
+    private byte[] compress(byte[] records) {
+        byte[] compressed = BatchCodec.compress(records);
+        threadMetrics.compressedBytes += compressed.length;
+        threadMetrics.uncompressedBytes += records.length;
+        return compressed;
+    }
 
-        public void writeElement(Element element) throws IOException {
-            output.write(element.getKey().value);
-            output.write(element.getValue().value);
+    private Supplier<RecordBuffer> takeStreamed(int sender) {
+        if (!streamDone[sender]) {
+            return null;
         }
+        RecordBuffer records = receiver != null ? receiver.take(sender) : received;
+        return () -> records;
+    }
 
-        public void writeElements(Element[] elements) throws UncheckedIOException {
+    /**
+     * Waits for data from all senders and sorts it. With more than one sorting thread, data from every
+     * sender is sorted as soon as it is complete, otherwise all data is sorted at once as single run.
+     */
+    private List<SortedRun> sortReceived(Vars variable, int senders, IntFunction<Supplier<RecordBuffer>> arrival,
+                                         String sortEngine, int sortThreads) throws Exception {
+        List<SortedRun> sortedRuns = new ArrayList<>();
+        if (sortThreads > 1) {
+            sortingStart = System.nanoTime();
+            System.out.printf(Locale.ENGLISH, "Thread %d started sorting buckets as they arrive%n", PCJ.myId());
+
+            ExecutorService sortPool = Executors.newFixedThreadPool(sortThreads);
             try {
-                for (Element element : elements) {
-                    writeElement(element);
+                List<Future<SortedRun>> sortedFutures = new ArrayList<>();
+                boolean[] submitted = new boolean[senders];
+                for (int arrived = 0; arrived < senders; ++arrived) {
+                    PCJ.waitFor(variable);
+                    for (int i = 0; i < senders; ++i) {
+                        Supplier<RecordBuffer> records = submitted[i] ? null : arrival.apply(i);
+                        if (records != null) {
+                            submitted[i] = true;
+                            sortedFutures.add(sortPool.submit(() -> SortedRun.sort(records.get(), sortEngine)));
+                        }
+                    }
                 }
-            } catch (IOException ex) {
-                throw new UncheckedIOException(ex);
+                timeline("waitfor_data");
+                for (Future<SortedRun> sortedFuture : sortedFutures) {
+                    sortedRuns.add(sortedFuture.get());
+                }
+            } finally {
+                sortPool.shutdown();
+            }
+        } else {
+            PCJ.waitFor(variable, senders);
+            timeline("waitfor_data");
+            sortingStart = System.nanoTime();
+
+            System.out.printf(Locale.ENGLISH, "Thread %d started sorting bucket%n", PCJ.myId());
+            if (receiver != null) {
+                sortedRuns.add(SortedRun.sort(receiver.takeAll(), sortEngine));
+            } else if (received != null) {
+                sortedRuns.add(SortedRun.sort(received, sortEngine));
+            } else {
+                RecordBuffer[] received = new RecordBuffer[buckets.length];
+                for (int i = 0; i < buckets.length; ++i) {
+                    received[i] = unpackBucket(i, buckets[i]);
+                    buckets[i] = null;
+                }
+                sortedRuns.add(SortedRun.sort(received, sortEngine));
             }
         }
+        return sortedRuns;
+    }
 
-        @Override
-        public void close() throws Exception {
-            output.close();
+    /**
+     * Per-destination batches of records with bounded number of batches in flight to every destination.
+     */
+    private static class BatchSender {
+        private final RecordBuffer[] batches;
+        private final List<Deque<PcjFuture<Void>>> inFlight;
+        private final long[] sent;
+        private final int batchRecords;
+        private final int maxInFlight;
+        private final UnaryOperator<byte[]> compressor;
+
+        /**
+         * With compressor set, batches sent to other threads are compressed.
+         */
+        BatchSender(int destinations, int batchRecords, int maxInFlight, UnaryOperator<byte[]> compressor) {
+            this.batchRecords = batchRecords;
+            this.maxInFlight = maxInFlight;
+            this.compressor = compressor;
+            batches = new RecordBuffer[destinations];
+            inFlight = new ArrayList<>(destinations);
+            sent = new long[destinations];
+            for (int i = 0; i < destinations; ++i) {
+                batches[i] = new RecordBuffer(batchRecords);
+                inFlight.add(new ArrayDeque<>());
+            }
+        }
+
+        void add(int destination, RecordBuffer records, int index) throws IOException {
+            RecordBuffer batch = batches[destination];
+            batch.append(records, index);
+            if (batch.size() == batchRecords) {
+                send(destination);
+            }
+        }
+
+        private void send(int destination) throws IOException {
+            RecordBuffer batch = batches[destination];
+            sent[destination] += batch.size();
+            if (destination == PCJ.myId()) {
+                StreamReceiver receiver = PCJ.getLocal(Vars.receiver);
+                receiver.add(PCJ.myId(), batch);
+                batches[destination] = new RecordBuffer(batchRecords);
+                return;
+            }
+
+            Deque<PcjFuture<Void>> futures = inFlight.get(destination);
+            while (futures.size() >= maxInFlight) {
+                futures.poll().get();
+            }
+            byte[] records = batch.toBytes();
+            if (compressor != null) {
+                records = compressor.apply(records);
+            }
+            futures.add(PCJ.asyncAt(destination, new BatchTask(PCJ.myId(), records, compressor != null)));
+            batches[destination] = new RecordBuffer(batchRecords);
+        }
+
+        long sent(int destination) {
+            return sent[destination];
+        }
+
+        /**
+         * Sends remaining batches and, when all batches to destination are delivered, marks sender as done there.
+         */
+        void finish() throws IOException {
+            List<PcjFuture<Void>> doneFutures = new ArrayList<>();
+            for (int i = 0; i < batches.length; ++i) {
+                if (batches[i].size() > 0) {
+                    send(i);
+                }
+                for (PcjFuture<Void> future : inFlight.get(i)) {
+                    future.get();
+                }
+                System.err.printf(Locale.ENGLISH, "Thread %3d sent to %3d - %5d elements%n",
+                        PCJ.myId(), i, sent[i]);
+                if (i == PCJ.myId()) {
+                    PCJ.putLocal(true, Vars.streamDone, PCJ.myId());
+                } else {
+                    doneFutures.add(PCJ.asyncPut(true, i, Vars.streamDone, PCJ.myId()));
+                }
+            }
+            doneFutures.forEach(PcjFuture::get);
         }
     }
 
-    public static class Text implements Comparable<Text>, Serializable {
+    private static class BatchTask implements AsyncTask.VoidTask {
+        private final int sender;
+        private final byte[] records;
+        private final boolean compressed;
 
-        private byte[] value;
+        BatchTask(int sender, byte[] records, boolean compressed) {
+            this.sender = sender;
+            this.records = records;
+            this.compressed = compressed;
+        }
 
-        public Text(byte[] value) {
-            this.value = value.clone();
+        @Override
+        public void run() throws IOException {
+            StreamReceiver receiver = PCJ.getLocal(Vars.receiver);
+            receiver.add(sender, compressed ? BatchCodec.decompress(records) : records);
+        }
+    }
+
+    private static class DirectTask implements AsyncTask.VoidTask {
+        private final int offset;
+        private final byte[] records;
+        private final boolean compressed;
+
+        DirectTask(int offset, byte[] records, boolean compressed) {
+            this.offset = offset;
+            this.records = records;
+            this.compressed = compressed;
         }
 
         @Override
-        public int compareTo(Text other) {
-            byte[] buffer1 = this.value;
-            byte[] buffer2 = other.value;
-            if (buffer1 == buffer2) {
-                return 0;
-            }
+        public void run() {
+            RecordBuffer received = PCJ.getLocal(Vars.received);
+            received.put(offset, compressed ? BatchCodec.decompress(records) : records);
+        }
+    }
 
-            for (int i = 0, j = 0; i < buffer1.length && j < buffer2.length; ++i, ++j) {
-                int a = (buffer1[i] & 0xFF);
-                int b = (buffer2[i] & 0xFF);
-                if (a != b) {
-                    return a - b;
+    /**
+     * Fast compression of exchanged records in LZ4 block style: byte-aligned sequences of literals followed
+     * by a match with earlier data, found with a hash table of 4-byte strings, without any entropy coding.
+     * Compressed array starts with length of the original data. Every sequence starts with token holding
+     * literal count in high and match length minus 4 in low nibble, with value 15 extended by following
+     * bytes (255 means that another byte follows), then come literals and 2-byte little-endian offset of
+     * the match. The last sequence has literals only.
+     */
+    static class BatchCodec {
+        private static final int minMatch = 4;
+        private static final int hashLog = 14;
+        private static final int maxOffset = 0xFFFF;
+        private static final ThreadLocal<int[]> hashTables = ThreadLocal.withInitial(() -> new int[1 << hashLog]);
+
+        static byte[] compress(byte[] data) {
+            int[] table = hashTables.get();
+            Arrays.fill(table, -1);
+            byte[] compressed = new byte[4 + data.length + data.length / 255 + 16];
+            ByteBuffer.wrap(compressed).putInt(0, data.length);
+            ByteBuffer words = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+            int length = 4;
+            int anchor = 0;
+            int position = 0;
+            int misses = 0;
+            while (position <= data.length - minMatch) {
+                int sequence = words.getInt(position);
+                int hash = (sequence * 0x9E3779B1) >>> (32 - hashLog);
+                int candidate = table[hash];
+                table[hash] = position;
+                if (candidate < 0 || position - candidate > maxOffset || words.getInt(candidate) != sequence) {
+                    // skip faster through data that does not compress
+                    position += 1 + (misses++ >>> 4);
+                    continue;
+                }
+                misses = 0;
+                int matchLength = minMatch;
+                while (position + matchLength + 8 <= data.length) {
+                    long difference = words.getLong(candidate + matchLength) ^ words.getLong(position + matchLength);
+                    if (difference != 0) {
+                        matchLength += Long.numberOfTrailingZeros(difference) >>> 3;
+                        break;
+                    }
+                    matchLength += 8;
+                }
+                while (position + matchLength < data.length && position + matchLength + 8 > data.length
+                               && data[candidate + matchLength] == data[position + matchLength]) {
+                    ++matchLength;
                 }
+                length = writeLiterals(compressed, length, data, anchor, position - anchor, matchLength - minMatch);
+                compressed[length++] = (byte) (position - candidate);
+                compressed[length++] = (byte) ((position - candidate) >>> 8);
+                if (matchLength - minMatch >= 15) {
+                    length = writeCount(compressed, length, matchLength - minMatch - 15);
+                }
+                position += matchLength;
+                anchor = position;
             }
-            return buffer1.length - buffer2.length;
+            if (anchor < data.length) {
+                length = writeLiterals(compressed, length, data, anchor, data.length - anchor, 0);
+            }
+            return Arrays.copyOf(compressed, length);
         }
 
-        @Override
-        public boolean equals(Object obj) {
-            if (!(obj instanceof Text)) {
-                return false;
+        static byte[] decompress(byte[] compressed) {
+            byte[] data = new byte[ByteBuffer.wrap(compressed).getInt(0)];
+            int position = 4;
+            int length = 0;
+            try {
+                while (position < compressed.length) {
+                    int token = compressed[position++] & 0xFF;
+                    int literals = token >>> 4;
+                    if (literals == 15) {
+                        int extension;
+                        do {
+                            extension = compressed[position++] & 0xFF;
+                            literals += extension;
+                        } while (extension == 255);
+                    }
+                    System.arraycopy(compressed, position, data, length, literals);
+                    position += literals;
+                    length += literals;
+                    if (position == compressed.length) {
+                        break;
+                    }
+
+                    int offset = (compressed[position++] & 0xFF) | (compressed[position++] & 0xFF) << 8;
+                    int matchLength = token & 0xF;
+                    if (matchLength == 15) {
+                        int extension;
+                        do {
+                            extension = compressed[position++] & 0xFF;
+                            matchLength += extension;
+                        } while (extension == 255);
+                    }
+                    matchLength += minMatch;
+                    if (offset == 0 || offset > length) {
+                        throw new IllegalStateException("Corrupted compressed records");
+                    }
+                    if (offset >= matchLength) {
+                        System.arraycopy(data, length - offset, data, length, matchLength);
+                    } else {
+                        // overlapping match repeats last offset bytes
+                        for (int i = 0; i < matchLength; ++i) {
+                            data[length + i] = data[length - offset + i];
+                        }
+                    }
+                    length += matchLength;
+                }
+            } catch (IndexOutOfBoundsException e) {
+                throw new IllegalStateException("Corrupted compressed records", e);
             }
-            Text that = (Text) obj;
-            return this.compareTo(that) == 0;
+            if (length != data.length) {
+                throw new IllegalStateException("Truncated compressed records");
+            }
+            return data;
         }
 
-        @Override
-        public int hashCode() {
-            return Arrays.hashCode(value);
+        /**
+         * Writes token and literals of sequence, returns position after them.
+         */
+        private static int writeLiterals(byte[] compressed, int length, byte[] data, int from, int count, int matchCode) {
+            compressed[length++] = (byte) (Math.min(count, 15) << 4 | Math.min(matchCode, 15));
+            if (count >= 15) {
+                length = writeCount(compressed, length, count - 15);
+            }
+            System.arraycopy(data, from, compressed, length, count);
+            return length + count;
         }
 
-        @Override
-        public String toString() {
-            StringBuilder sb = new StringBuilder("Text{");
-            for (byte b : value) {
-                if ((b & 0xF0) == 0) sb.append('0');
-                sb.append(Integer.toHexString(b & 0xFF));
+        private static int writeCount(byte[] compressed, int length, int count) {
+            for (; count >= 255; count -= 255) {
+                compressed[length++] = (byte) 255;
             }
-            sb.append('}');
-            return sb.toString();
+            compressed[length++] = (byte) count;
+            return length;
         }
     }
 
-    public static class Element implements Comparable<Element>, Serializable {
-        private Text key;
-        private Text value;
+    /**
+     * Accumulates streamed batches, either separately for every sender or all together. With spiller set,
+     * records collected together are sorted and spilled whenever they reach the spiller's memory limit;
+     * spilling is done by the thread that delivers the batch, which holds back further batches and
+     * in turn the senders.
+     */
+    private static class StreamReceiver {
+        private final RecordBuffer all;
+        private final RecordBuffer[] fromSender;
+        private final long[] receivedRecords;
+        private final RunSpiller spiller;
+
+        StreamReceiver(int senders, boolean separateSenders, RunSpiller spiller) {
+            all = new RecordBuffer(0);
+            fromSender = new RecordBuffer[senders];
+            receivedRecords = new long[senders];
+            for (int i = 0; i < senders; ++i) {
+                fromSender[i] = separateSenders ? new RecordBuffer(0) : all;
+            }
+            this.spiller = spiller;
+        }
+
+        void add(int sender, byte[] packed) throws IOException {
+            RecordBuffer records = fromSender[sender];
+            synchronized (records) {
+                records.append(packed);
+                receivedRecords[sender] += packed.length / recordLength;
+                spillIfFull(records);
+            }
+        }
+
+        void add(int sender, RecordBuffer batch) throws IOException {
+            RecordBuffer records = fromSender[sender];
+            synchronized (records) {
+                for (int i = 0; i < batch.size(); ++i) {
+                    records.append(batch, i);
+                }
+                receivedRecords[sender] += batch.size();
+                spillIfFull(records);
+            }
+        }
 
-        public Element(Text key, Text value) {
-            this.key = key;
-            this.value = value;
+        private void spillIfFull(RecordBuffer records) throws IOException {
+            if (spiller != null && records.size() >= spiller.memoryRecords) {
+                spiller.spill(records);
+                records.clear();
+            }
         }
 
-        public Text getKey() {
-            return key;
+        List<SpilledRun> spilledRuns() {
+            if (spiller == null) {
+                return Collections.emptyList();
+            }
+            synchronized (all) {
+                return spiller.runs;
+            }
         }
 
-        public Text getValue() {
-            return value;
+        long received(int sender) {
+            synchronized (fromSender[sender]) {
+                return receivedRecords[sender];
+            }
         }
 
-        @Override
-        public boolean equals(Object obj) {
-            if (!(obj instanceof Element)) {
-                return false;
+        RecordBuffer take(int sender) {
+            RecordBuffer records = fromSender[sender];
+            synchronized (records) {
+                return records;
             }
-            Element element = (Element) obj;
-            return key.equals(element.key) &&
-                           value.equals(element.value);
         }
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(key, value);
+        RecordBuffer takeAll() {
+            synchronized (all) {
+                return all;
+            }
+        }
+    }
+
+    /**
+     * Reader of input file through memory mapped windows of configurable size. Recently used windows are
+     * kept mapped, so the reading pass reuses mappings made while sampling, and with read-ahead enabled
+     * the window following the current one is loaded in background while the current one is consumed.
+     * Read-ahead is triggered only when sequential reading moves to the next window, not by seeks and
+     * single record reads, so sampling does not load whole windows.
+     */
+    public static class TeraFileInput implements AutoCloseable {
+        public static final int defaultWindowRecords = 1_000_000;
+        public static final int defaultCachedWindows = 4;
+        private final FileChannel input;
+        private final long fileRecords;
+        private final int windowRecords;
+        private final Map<Long, MappedByteBuffer> windows;
+        private final ExecutorService readAhead;
+        private MappedByteBuffer mappedByteBuffer;
+        private long minElementPos;
+        private long maxElementPos;
+        private long windowIndex;
+        private long position;
+
+        public TeraFileInput(String inputFile) throws IOException {
+            this(inputFile, defaultWindowRecords, defaultCachedWindows, false);
         }
 
-        @Override
-        public int compareTo(Element other) {
-            int r = key.compareTo(other.key);
-            if (r != 0) {
-                return r;
+        public TeraFileInput(String inputFile, int windowRecords, int cachedWindows, boolean readAhead)
+                throws IOException {
+            if (windowRecords <= 0 || windowRecords > Integer.MAX_VALUE / recordLength) {
+                throw new IllegalArgumentException("Invalid window size: " + windowRecords);
             }
-            return value.compareTo(other.value);
+            RandomAccessFile raf = new RandomAccessFile(inputFile, "r");
+            input = raf.getChannel();
+            fileRecords = input.size() / recordLength;
+            this.windowRecords = windowRecords;
+            windows = new LinkedHashMap<Long, MappedByteBuffer>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest) {
+                    return size() > cachedWindows;
+                }
+            };
+            this.readAhead = readAhead ? Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "TeraFileInput-readahead");
+                thread.setDaemon(true);
+                return thread;
+            }) : null;
+
+            mappedByteBuffer = null;
+            minElementPos = -1;
+            maxElementPos = -1;
+            windowIndex = -1;
+            position = 0;
+        }
+
+        @Override
+        public void close() throws Exception {
+            if (readAhead != null) {
+                readAhead.shutdownNow();
+            }
+            input.close();
+        }
+
+        public long length() {
+            return fileRecords;
+        }
+
+        public void seek(long pos) {
+            position = pos;
+        }
+
+        private MappedByteBuffer window(long index) throws IOException {
+            synchronized (windows) {
+                MappedByteBuffer window = windows.get(index);
+                if (window == null) {
+                    long first = index * windowRecords;
+                    long size = Math.min(fileRecords - first, windowRecords) * recordLength;
+                    window = input.map(FileChannel.MapMode.READ_ONLY, first * recordLength, size);
+                    windows.put(index, window);
+                }
+                return window;
+            }
+        }
+
+        private void ensureMapped(boolean sequential) throws IOException {
+            if (position >= fileRecords) {
+                throw new EOFException("Position " + position + " is beyond the end of input");
+            }
+            if (position < minElementPos || position >= maxElementPos) {
+                long index = position / windowRecords;
+                mappedByteBuffer = window(index);
+                minElementPos = index * windowRecords;
+                maxElementPos = minElementPos + mappedByteBuffer.capacity() / recordLength;
+
+                if (readAhead != null && sequential && index == windowIndex + 1 && maxElementPos < fileRecords) {
+                    readAhead.submit(() -> {
+                        window(index + 1).load();
+                        return null;
+                    });
+                }
+                windowIndex = index;
+            }
+            mappedByteBuffer.position((int) ((position - minElementPos) * recordLength));
+        }
+
+        public void readRecord(RecordBuffer records) throws IOException {
+            readRecords(records, 1, false);
+        }
+
+        /**
+         * Appends up to count records from current position to buffer. Returns number of records read.
+         */
+        public int readRecords(RecordBuffer records, int count) throws IOException {
+            return readRecords(records, count, true);
+        }
+
+        private int readRecords(RecordBuffer records, int count, boolean sequential) throws IOException {
+            count = (int) Math.min(count, fileRecords - position);
+            for (int done = 0; done < count; ) {
+                ensureMapped(sequential);
+                int length = (int) Math.min(count - done, maxElementPos - position);
+                records.append(mappedByteBuffer, length);
+                position += length;
+                done += length;
+            }
+            return count;
+        }
+
+        /**
+         * Copies up to count records from current position to destination buffer.
+         * Returns number of records read.
+         */
+        public int readRecords(ByteBuffer dst, int count) throws IOException {
+            count = (int) Math.min(Math.min(count, fileRecords - position), dst.remaining() / recordLength);
+            for (int done = 0; done < count; ) {
+                ensureMapped(true);
+                int length = (int) Math.min(count - done, maxElementPos - position);
+                ByteBuffer records = mappedByteBuffer.duplicate();
+                records.limit(records.position() + length * recordLength);
+                dst.put(records);
+                position += length;
+                done += length;
+            }
+            return count;
+        }
+    }
+
+    public static class TeraFileOutput implements AutoCloseable {
+        private static final int bufferRecords = 40_000;
+        private final FileChannel output;
+        private final ByteBuffer buffer;
+        private final CRC32 crc = new CRC32();
+        private long position;
+
+        public TeraFileOutput(String outputFile, long firstElement) throws IOException {
+            output = FileChannel.open(Paths.get(outputFile), StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            buffer = ByteBuffer.allocateDirect(bufferRecords * recordLength);
+            position = firstElement * recordLength;
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                position += output.write(buffer, position);
+            }
+            buffer.clear();
+        }
+
+        public void writeRecord(byte[] page, int offset) throws IOException {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            buffer.put(page, offset, recordLength);
+        }
+
+        /**
+         * Returns CRC32 of all records written so far, after writing them out.
+         */
+        public long checksum() throws IOException {
+            flush();
+            return crc.getValue();
+        }
+
+        public void writeRuns(List<RunCursor> runs) throws UncheckedIOException {
+            try {
+                RunMerger merger = new RunMerger(runs);
+                while (merger.next()) {
+                    writeRecord(merger.page(), merger.offset());
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            output.close();
+        }
+    }
+
+    /**
+     * Store of fixed-length records kept in large byte[] pages, so that a partition of any size costs
+     * roughly its raw data size and records are addressed by index instead of by object reference.
+     */
+    public static class RecordBuffer {
+        private static final int pageShift = 16;
+        private static final int pageRecords = 1 << pageShift;
+        private static final int pageMask = pageRecords - 1;
+
+        private byte[][] pages;
+        private int firstPageRecords;
+        private int size;
+
+        public RecordBuffer(long expectedRecords) {
+            if (expectedRecords > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Too many records for single buffer: " + expectedRecords);
+            }
+            pages = new byte[(int) ((expectedRecords + pageRecords - 1) >>> pageShift) + 1][];
+            firstPageRecords = (int) Math.max(16, Math.min(expectedRecords, pageRecords));
+            size = 0;
+        }
+
+        /**
+         * Creates buffer over packed records. Array is used as buffer page when it fits, otherwise it is copied.
+         */
+        public static RecordBuffer wrap(byte[] packed) {
+            int count = packed.length / recordLength;
+            if (count > pageRecords) {
+                RecordBuffer records = new RecordBuffer(count);
+                records.append(packed);
+                return records;
+            }
+            RecordBuffer records = new RecordBuffer(count);
+            records.pages[0] = packed;
+            records.size = count;
+            return records;
+        }
+
+        /**
+         * Creates buffer of given number of records, with all pages allocated, to be filled by
+         * {@link #put(int, byte[])} at any index.
+         */
+        public static RecordBuffer allocate(long count) {
+            RecordBuffer records = new RecordBuffer(count);
+            records.size = (int) count;
+            for (int pageNo = 0; ((long) pageNo << pageShift) < count; ++pageNo) {
+                int pageSize = (int) Math.min(count - ((long) pageNo << pageShift), pageRecords);
+                records.pages[pageNo] = new byte[pageSize * recordLength];
+            }
+            return records;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public byte[] page(int index) {
+            return pages[index >>> pageShift];
+        }
+
+        public int offset(int index) {
+            return (index & pageMask) * recordLength;
+        }
+
+        private void ensureCapacity() {
+            int pageNo = size >>> pageShift;
+            if (pageNo == pages.length) {
+                pages = Arrays.copyOf(pages, pages.length * 2);
+            }
+            byte[] page = pages[pageNo];
+            if (page == null) {
+                pages[pageNo] = new byte[(pageNo == 0 ? firstPageRecords : pageRecords) * recordLength];
+            } else if (offset(size) == page.length) {
+                int capacity = Math.max(page.length * 2, 16 * recordLength);
+                pages[pageNo] = Arrays.copyOf(page, Math.min(capacity, pageRecords * recordLength));
+            }
+        }
+
+        public void append(ByteBuffer source, int count) {
+            for (int copied = 0; copied < count; ) {
+                ensureCapacity();
+                int length = Math.min(count - copied, (page(size).length - offset(size)) / recordLength);
+                source.get(page(size), offset(size), length * recordLength);
+                copied += length;
+                size += length;
+            }
+        }
+
+        /**
+         * Appends all records of other buffer.
+         */
+        public void append(RecordBuffer source) {
+            for (int copied = 0; copied < source.size(); ) {
+                ensureCapacity();
+                int length = Math.min(Math.min(source.size() - copied, pageRecords - (copied & pageMask)),
+                        (page(size).length - offset(size)) / recordLength);
+                System.arraycopy(source.page(copied), source.offset(copied), page(size), offset(size), length * recordLength);
+                copied += length;
+                size += length;
+            }
+        }
+
+        public void append(RecordBuffer source, int index) {
+            ensureCapacity();
+            System.arraycopy(source.page(index), source.offset(index), page(size), offset(size), recordLength);
+            ++size;
+        }
+
+        public void clear() {
+            size = 0;
+        }
+
+        /**
+         * Creates buffer over pages returned by {@link #toPages()}.
+         */
+        public static RecordBuffer wrap(byte[][] pages) {
+            if (pages.length == 1) {
+                return wrap(pages[0]);
+            }
+            RecordBuffer records = new RecordBuffer(0);
+            records.pages = pages.clone();
+            records.size = (pages.length - 1) * pageRecords + pages[pages.length - 1].length / recordLength;
+            return records;
+        }
+
+        /**
+         * Returns buffer pages with unused space of the last page cut off. Pages are not copied
+         * (except the last, partially filled one), so the buffer should not be used afterwards.
+         */
+        public byte[][] toPages() {
+            int pageCount = (size + pageRecords - 1) >>> pageShift;
+            byte[][] result = Arrays.copyOf(pages, Math.max(pageCount, 1));
+            int lastLength = (size - (result.length - 1) * pageRecords) * recordLength;
+            if (result[result.length - 1] == null) {
+                result[result.length - 1] = new byte[0];
+            } else if (result[result.length - 1].length != lastLength) {
+                result[result.length - 1] = Arrays.copyOf(result[result.length - 1], lastLength);
+            }
+            return result;
+        }
+
+        /**
+         * Appends records packed one after another in array.
+         */
+        public void append(byte[] packed) {
+            int count = packed.length / recordLength;
+            for (int copied = 0; copied < count; ) {
+                ensureCapacity();
+                int length = Math.min(count - copied, (page(size).length - offset(size)) / recordLength);
+                System.arraycopy(packed, copied * recordLength, page(size), offset(size), length * recordLength);
+                copied += length;
+                size += length;
+            }
+        }
+
+        /**
+         * Returns all records packed in single array. When records fill exactly the first page, the page itself
+         * is returned, so the buffer should not be modified afterwards.
+         */
+        public byte[] toBytes() {
+            if (size <= pageRecords && pages[0] != null && pages[0].length == size * recordLength) {
+                return pages[0];
+            }
+            return toBytes(0, size);
+        }
+
+        /**
+         * Returns copy of given range of records packed in single array.
+         */
+        public byte[] toBytes(int from, int count) {
+            byte[] packed = new byte[count * recordLength];
+            for (int copied = 0; copied < count; ) {
+                int index = from + copied;
+                int length = Math.min(count - copied, pageRecords - (index & pageMask));
+                System.arraycopy(page(index), offset(index), packed, copied * recordLength, length * recordLength);
+                copied += length;
+            }
+            return packed;
+        }
+
+        /**
+         * Overwrites records starting at given index with records packed in array.
+         */
+        public void put(int index, byte[] packed) {
+            int count = packed.length / recordLength;
+            for (int copied = 0; copied < count; ) {
+                int target = index + copied;
+                int length = Math.min(count - copied, pageRecords - (target & pageMask));
+                System.arraycopy(packed, copied * recordLength, page(target), offset(target), length * recordLength);
+                copied += length;
+            }
+        }
+
+        /**
+         * Overwrites records starting at given index with all records of other buffer.
+         */
+        public void put(int index, RecordBuffer source) {
+            for (int i = 0; i < source.size(); ++i) {
+                System.arraycopy(source.page(i), source.offset(i), page(index + i), offset(index + i), recordLength);
+            }
+        }
+
+        public int compare(int i, int j) {
+            return compareRecords(page(i), offset(i), page(j), offset(j));
+        }
+
+        public int compare(int i, RecordBuffer other, int j) {
+            return compareRecords(page(i), offset(i), other.page(j), other.offset(j));
+        }
+
+        public int[] sortedOrder() {
+            int[] order = new int[size];
+            for (int i = 0; i < size; ++i) {
+                order[i] = i;
+            }
+            mergeSort(order, order.clone(), 0, size);
+            return order;
+        }
+
+        public void sortRange(int[] order, int from, int to) {
+            int[] range = Arrays.copyOfRange(order, from, to);
+            mergeSort(range, range.clone(), 0, range.length);
+            System.arraycopy(range, 0, order, from, range.length);
+        }
+
+        private void mergeSort(int[] dst, int[] src, int from, int to) {
+            if (to - from < 16) {
+                for (int i = from + 1; i < to; ++i) {
+                    int value = dst[i];
+                    int j = i - 1;
+                    for (; j >= from && compare(dst[j], value) > 0; --j) {
+                        dst[j + 1] = dst[j];
+                    }
+                    dst[j + 1] = value;
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            mergeSort(src, dst, from, mid);
+            mergeSort(src, dst, mid, to);
+            if (compare(src[mid - 1], src[mid]) <= 0) {
+                System.arraycopy(src, from, dst, from, to - from);
+                return;
+            }
+            for (int i = from, p = from, q = mid; i < to; ++i) {
+                if (q >= to || p < mid && compare(src[p], src[q]) <= 0) {
+                    dst[i] = src[p++];
+                } else {
+                    dst[i] = src[q++];
+                }
+            }
+        }
+
+        public long keyPrefix(int index) {
+            return keyPrefix(page(index), offset(index));
+        }
+
+        static long keyPrefix(byte[] page, int offset) {
+            long prefix = 0;
+            for (int i = 0; i < 8; ++i) {
+                prefix = (prefix << 8) | (page[offset + i] & 0xFF);
+            }
+            return prefix;
+        }
+
+        public int keySuffix(int index) {
+            byte[] page = page(index);
+            int offset = offset(index);
+            return ((page[offset + 8] & 0xFF) << 8) | (page[offset + 9] & 0xFF);
+        }
+
+        static int compareRecords(byte[] buffer1, int offset1, byte[] buffer2, int offset2) {
+            for (int i = 0; i < recordLength; ++i) {
+                int a = (buffer1[offset1 + i] & 0xFF);
+                int b = (buffer2[offset2 + i] & 0xFF);
+                if (a != b) {
+                    return a - b;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Sorts records of buffer by key packed into primitive arrays: first 8 key bytes in one long and
+     * remaining 2 key bytes together with record index in the other. Key is sorted with LSD radix sort
+     * on 16-bit digits; full records are compared only for ranges of equal keys.
+     */
+    public static class KeyPrefixSorter {
+        private static final int digitBits = 16;
+        private static final int digitMask = (1 << digitBits) - 1;
+        private static final int radixThreshold = 1 << 12;
+
+        public static int[] sort(RecordBuffer records) {
+            int n = records.size();
+            if (n < radixThreshold) {
+                return records.sortedOrder();
+            }
+
+            long[] prefixes = new long[n];
+            long[] suffixes = new long[n];
+            for (int i = 0; i < n; ++i) {
+                prefixes[i] = records.keyPrefix(i);
+                suffixes[i] = ((long) records.keySuffix(i) << 32) | i;
+            }
+            long[][] sorted = radixSort(prefixes, suffixes, 32);
+            prefixes = sorted[0];
+            suffixes = sorted[1];
+
+            int[] order = new int[n];
+            for (int i = 0; i < n; ++i) {
+                order[i] = (int) suffixes[i];
+            }
+
+            // equal keys: break ties on values
+            for (int from = 0; from < n; ) {
+                int to = from + 1;
+                while (to < n && prefixes[to] == prefixes[from] && (suffixes[to] >>> 32) == (suffixes[from] >>> 32)) {
+                    ++to;
+                }
+                if (to - from > 1) {
+                    records.sortRange(order, from, to);
+                }
+                from = to;
+            }
+            return order;
+        }
+
+        /**
+         * Sorts records of several buffers together without moving them. Returns packed keys in sorted order:
+         * first 8 key bytes, and remaining 2 key bytes with locator of the record (buffer and index in it).
+         */
+        public static KeySortedRun sortKeys(RecordBuffer[] segments) {
+            if (segments.length > KeySortedRun.maxSegments) {
+                throw new IllegalArgumentException("Too many buffers to sort together: " + segments.length);
+            }
+            int n = Arrays.stream(segments).mapToInt(RecordBuffer::size).sum();
+            long[] prefixes = new long[n];
+            long[] suffixes = new long[n];
+            for (int segment = 0, pos = 0; segment < segments.length; ++segment) {
+                RecordBuffer records = segments[segment];
+                for (int i = 0; i < records.size(); ++i, ++pos) {
+                    prefixes[pos] = records.keyPrefix(i);
+                    suffixes[pos] = ((long) records.keySuffix(i) << 48) | ((long) segment << 32) | i;
+                }
+            }
+            if (n > 1) {
+                long[][] sorted = radixSort(prefixes, suffixes, 48);
+                prefixes = sorted[0];
+                suffixes = sorted[1];
+            }
+            KeySortedRun run = new KeySortedRun(segments, prefixes, suffixes);
+
+            // equal keys: break ties on values
+            for (int from = 0; from < n; ) {
+                int to = from + 1;
+                while (to < n && prefixes[to] == prefixes[from] && (suffixes[to] >>> 48) == (suffixes[from] >>> 48)) {
+                    ++to;
+                }
+                if (to - from > 1) {
+                    run.sortRange(from, to);
+                }
+                from = to;
+            }
+            return run;
+        }
+
+        /**
+         * Sorts keys with companions, least significant digit first: key suffix stored in companions above
+         * given shift, then the whole key prefix. Returns sorted keys and companions, that may be the arrays
+         * passed as arguments or newly allocated ones.
+         */
+        private static long[][] radixSort(long[] prefixes, long[] suffixes, int suffixShift) {
+            int n = prefixes.length;
+            long[] tempPrefixes = new long[n];
+            long[] tempSuffixes = new long[n];
+            int[] counts = new int[1 << digitBits];
+            if (radixPass(suffixes, prefixes, tempSuffixes, tempPrefixes, suffixShift, counts)) {
+                long[] swap = suffixes;
+                suffixes = tempSuffixes;
+                tempSuffixes = swap;
+                swap = prefixes;
+                prefixes = tempPrefixes;
+                tempPrefixes = swap;
+            }
+            for (int shift = 0; shift < 64; shift += digitBits) {
+                if (radixPass(prefixes, suffixes, tempPrefixes, tempSuffixes, shift, counts)) {
+                    long[] swap = suffixes;
+                    suffixes = tempSuffixes;
+                    tempSuffixes = swap;
+                    swap = prefixes;
+                    prefixes = tempPrefixes;
+                    tempPrefixes = swap;
+                }
+            }
+            return new long[][]{prefixes, suffixes};
+        }
+
+        /**
+         * Stable scatter of keys and companions by digit at given shift.
+         * Returns false, without moving anything, when all keys share the same digit.
+         */
+        private static boolean radixPass(long[] keys, long[] companions, long[] tempKeys, long[] tempCompanions,
+                                         int shift, int[] counts) {
+            Arrays.fill(counts, 0);
+            for (long key : keys) {
+                ++counts[(int) (key >>> shift) & digitMask];
+            }
+            if (counts[(int) (keys[0] >>> shift) & digitMask] == keys.length) {
+                return false;
+            }
+            for (int i = 0, sum = 0; i < counts.length; ++i) {
+                int count = counts[i];
+                counts[i] = sum;
+                sum += count;
+            }
+            for (int i = 0; i < keys.length; ++i) {
+                int pos = counts[(int) (keys[i] >>> shift) & digitMask]++;
+                tempKeys[pos] = keys[i];
+                tempCompanions[pos] = companions[i];
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Sampled records with their positions in input file, kept sorted by record and position when used
+     * as splitters between buckets.
+     */
+    public static class SampleSet implements Serializable {
+        private final byte[] records;
+        private final long[] positions;
+
+        public SampleSet(byte[] records, long[] positions) {
+            this.records = records;
+            this.positions = positions;
+        }
+
+        public int size() {
+            return positions.length;
+        }
+
+        public long position(int index) {
+            return positions[index];
+        }
+
+        public RecordBuffer records() {
+            return RecordBuffer.wrap(records);
+        }
+
+        /**
+         * Merges two sample sets sorted by record and position.
+         */
+        public SampleSet merge(SampleSet other) {
+            byte[] mergedRecords = new byte[records.length + other.records.length];
+            long[] mergedPositions = new long[positions.length + other.positions.length];
+            for (int i = 0, p = 0, q = 0; i < mergedPositions.length; ++i) {
+                boolean fromThis = q >= other.size();
+                if (!fromThis && p < size()) {
+                    int r = RecordBuffer.compareRecords(records, p * recordLength, other.records, q * recordLength);
+                    fromThis = r < 0 || r == 0 && positions[p] <= other.positions[q];
+                }
+                SampleSet source = fromThis ? this : other;
+                int index = fromThis ? p++ : q++;
+                System.arraycopy(source.records, index * recordLength, mergedRecords, i * recordLength, recordLength);
+                mergedPositions[i] = source.positions[index];
+            }
+            return new SampleSet(mergedRecords, mergedPositions);
+        }
+
+        public SampleSet sorted() {
+            int[] order = IntStream.range(0, size())
+                                  .boxed()
+                                  .sorted((i, j) -> {
+                                      int r = compareRecords(i, j);
+                                      return r != 0 ? r : Long.compare(positions[i], positions[j]);
+                                  })
+                                  .mapToInt(Integer::intValue)
+                                  .toArray();
+            return select(order, false);
+        }
+
+        /**
+         * Returns samples at given indices. Positions are replaced by {@link Long#MAX_VALUE} when requested,
+         * so that all records equal to a splitter fall into the splitter's bucket.
+         */
+        public SampleSet select(int[] indices, boolean ignorePositions) {
+            byte[] selectedRecords = new byte[indices.length * recordLength];
+            long[] selectedPositions = new long[indices.length];
+            for (int i = 0; i < indices.length; ++i) {
+                System.arraycopy(records, indices[i] * recordLength, selectedRecords, i * recordLength, recordLength);
+                selectedPositions[i] = ignorePositions ? Long.MAX_VALUE : positions[indices[i]];
+            }
+            return new SampleSet(selectedRecords, selectedPositions);
+        }
+
+        public int compareRecords(int i, int j) {
+            return RecordBuffer.compareRecords(records, i * recordLength, records, j * recordLength);
+        }
+
+        public int compareKeys(int i, int j) {
+            for (int k = 0; k < keyLength; ++k) {
+                int a = (records[i * recordLength + k] & 0xFF);
+                int b = (records[j * recordLength + k] & 0xFF);
+                if (a != b) {
+                    return a - b;
+                }
+            }
+            return 0;
+        }
+
+        public String keyToString(int index) {
+            return new Text(Arrays.copyOfRange(records, index * recordLength, index * recordLength + keyLength)).toString();
+        }
+
+        /**
+         * Returns bucket number for record at given position, assuming this set holds sorted splitters.
+         */
+        public int bucketOf(RecordBuffer buffer, int index, long position) {
+            byte[] page = buffer.page(index);
+            int offset = buffer.offset(index);
+            int low = 0;
+            int high = size() - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int r = RecordBuffer.compareRecords(records, mid * recordLength, page, offset);
+                if (r == 0) {
+                    r = Long.compare(positions[mid], position);
+                }
+                if (r < 0) {
+                    low = mid + 1;
+                } else if (r > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * Records together with the order in which they are sorted.
+     */
+    public abstract static class SortedRun {
+
+        public static SortedRun sort(RecordBuffer records, String sortEngine) {
+            if ("keys".equals(sortEngine)) {
+                return KeyPrefixSorter.sortKeys(new RecordBuffer[]{records});
+            }
+            int[] order = "merge".equals(sortEngine) ? records.sortedOrder() : KeyPrefixSorter.sort(records);
+            return new OrderedRun(records, order);
+        }
+
+        /**
+         * Sorts records of several buffers as single run. Engine sorting keys leaves records where they are,
+         * other engines sort records after copying them into one buffer. Copied segments are removed from
+         * the array, so only one copy of the records is kept besides the segment being copied.
+         */
+        public static SortedRun sort(RecordBuffer[] segments, String sortEngine) {
+            if (segments.length == 1) {
+                return sort(segments[0], sortEngine);
+            }
+            if ("keys".equals(sortEngine) && segments.length <= KeySortedRun.maxSegments) {
+                return KeyPrefixSorter.sortKeys(segments);
+            }
+            RecordBuffer records = new RecordBuffer(Arrays.stream(segments).mapToLong(RecordBuffer::size).sum());
+            for (int i = 0; i < segments.length; ++i) {
+                records.append(segments[i]);
+                segments[i] = null;
+            }
+            return sort(records, sortEngine);
+        }
+
+        public abstract int size();
+
+        public abstract byte[] page(int position);
+
+        public abstract int offset(int position);
+
+        public long keyPrefix(int position) {
+            return RecordBuffer.keyPrefix(page(position), offset(position));
+        }
+
+        public RunCursor cursor() {
+            return new RunCursor() {
+                private int position = -1;
+
+                @Override
+                public boolean next() {
+                    return ++position < size();
+                }
+
+                @Override
+                public byte[] page() {
+                    return SortedRun.this.page(position);
+                }
+
+                @Override
+                public int offset() {
+                    return SortedRun.this.offset(position);
+                }
+
+                @Override
+                public long keyPrefix() {
+                    return SortedRun.this.keyPrefix(position);
+                }
+            };
+        }
+    }
+
+    /**
+     * Records of single buffer with their order.
+     */
+    public static class OrderedRun extends SortedRun {
+        private final RecordBuffer records;
+        private final int[] order;
+
+        public OrderedRun(RecordBuffer records, int[] order) {
+            this.records = records;
+            this.order = order;
+        }
+
+        @Override
+        public int size() {
+            return order.length;
+        }
+
+        @Override
+        public byte[] page(int position) {
+            return records.page(order[position]);
+        }
+
+        @Override
+        public int offset(int position) {
+            return records.offset(order[position]);
+        }
+    }
+
+    /**
+     * Records of several buffers ordered by packed keys, so that only the keys were moved while sorting,
+     * and merging with other runs compares key prefixes without touching records. Locator of a record
+     * keeps buffer number in bits 32-47 and index in the buffer in bits 0-31.
+     */
+    public static class KeySortedRun extends SortedRun {
+        static final int maxSegments = 1 << 16;
+        private final RecordBuffer[] segments;
+        private final long[] prefixes;
+        private final long[] locators;
+
+        KeySortedRun(RecordBuffer[] segments, long[] prefixes, long[] locators) {
+            this.segments = segments;
+            this.prefixes = prefixes;
+            this.locators = locators;
+        }
+
+        @Override
+        public int size() {
+            return prefixes.length;
+        }
+
+        @Override
+        public byte[] page(int position) {
+            long locator = locators[position];
+            return segments[(int) (locator >>> 32) & 0xFFFF].page((int) locator);
+        }
+
+        @Override
+        public int offset(int position) {
+            long locator = locators[position];
+            return segments[(int) (locator >>> 32) & 0xFFFF].offset((int) locator);
+        }
+
+        @Override
+        public long keyPrefix(int position) {
+            return prefixes[position];
+        }
+
+        /**
+         * Sorts positions of given range, which have equal keys, by whole records.
+         */
+        void sortRange(int from, int to) {
+            Long[] range = new Long[to - from];
+            for (int i = from; i < to; ++i) {
+                range[i - from] = locators[i];
+            }
+            Arrays.sort(range, (locator1, locator2) -> RecordBuffer.compareRecords(
+                    segments[(int) (locator1 >>> 32) & 0xFFFF].page((int) (long) locator1),
+                    segments[(int) (locator1 >>> 32) & 0xFFFF].offset((int) (long) locator1),
+                    segments[(int) (locator2 >>> 32) & 0xFFFF].page((int) (long) locator2),
+                    segments[(int) (locator2 >>> 32) & 0xFFFF].offset((int) (long) locator2)));
+            for (int i = from; i < to; ++i) {
+                locators[i] = range[i - from];
+            }
+        }
+    }
+
+    public interface RunCursor {
+        /**
+         * Moves to the next record of the run. Returns false when the run is exhausted.
+         */
+        boolean next() throws IOException;
+
+        byte[] page();
+
+        int offset();
+
+        /**
+         * First 8 bytes of the current record key as unsigned number.
+         */
+        default long keyPrefix() {
+            return RecordBuffer.keyPrefix(page(), offset());
+        }
+    }
+
+    /**
+     * Sorted run written to local scratch file.
+     */
+    public static class SpilledRun {
+        private static final int bufferRecords = 10_000;
+        private final Path file;
+        private final long size;
+
+        public SpilledRun(Path file, long size) {
+            this.file = file;
+            this.size = size;
+        }
+
+        public long size() {
+            return size;
+        }
+
+        public void delete() throws IOException {
+            Files.deleteIfExists(file);
+        }
+
+        public RunCursor cursor() {
+            return new RunCursor() {
+                private final byte[] page = new byte[bufferRecords * recordLength];
+                private FileChannel channel;
+                private long remaining = size;
+                private int offset;
+                private int limit;
+
+                @Override
+                public boolean next() throws IOException {
+                    offset += recordLength;
+                    if (offset < limit) {
+                        return true;
+                    }
+                    if (remaining == 0) {
+                        if (channel != null) {
+                            channel.close();
+                        }
+                        return false;
+                    }
+                    if (channel == null) {
+                        channel = FileChannel.open(file, StandardOpenOption.READ);
+                    }
+                    int count = (int) Math.min(remaining, bufferRecords);
+                    ByteBuffer buffer = ByteBuffer.wrap(page, 0, count * recordLength);
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer) < 0) {
+                            throw new EOFException("Unexpected end of spilled run: " + file);
+                        }
+                    }
+                    remaining -= count;
+                    offset = 0;
+                    limit = count * recordLength;
+                    return true;
+                }
+
+                @Override
+                public byte[] page() {
+                    return page;
+                }
+
+                @Override
+                public int offset() {
+                    return offset;
+                }
+            };
+        }
+    }
+
+    /**
+     * Checkpoint of single thread in scratch directory: sorted partition of the thread, written after the
+     * exchange and sort, and manifest with number of partition records and, once the partition is saved
+     * into output file, its offset there. Manifest is ignored when it was written for a different run.
+     */
+    private static class Checkpoint {
+        private final Path partitionFile;
+        private final Path manifestFile;
+        private final String runKey;
+        private final Properties manifest = new Properties();
+
+        Checkpoint(String checkpointDir, int threadId, String runKey) throws IOException {
+            Path dir = Paths.get(checkpointDir);
+            Files.createDirectories(dir);
+            partitionFile = dir.resolve("pcj-terasort-" + threadId + ".partition");
+            manifestFile = dir.resolve("pcj-terasort-" + threadId + ".manifest");
+            this.runKey = runKey;
+            if (Files.exists(manifestFile)) {
+                try (InputStream in = Files.newInputStream(manifestFile)) {
+                    manifest.load(in);
+                }
+                if (!runKey.equals(manifest.getProperty("runKey"))) {
+                    manifest.clear();
+                }
+            }
+        }
+
+        boolean partitionDone() throws IOException {
+            String records = manifest.getProperty("partitionRecords");
+            return records != null && Files.exists(partitionFile)
+                           && Files.size(partitionFile) == Long.parseLong(records) * recordLength;
+        }
+
+        SpilledRun partition() {
+            return new SpilledRun(partitionFile, Long.parseLong(manifest.getProperty("partitionRecords")));
+        }
+
+        void savePartition(List<RunCursor> runCursors, long records) throws IOException {
+            manifest.clear();
+            store();
+            Files.deleteIfExists(partitionFile);
+            try (TeraFileOutput output = new TeraFileOutput(partitionFile.toString(), 0)) {
+                output.writeRuns(runCursors);
+            }
+            manifest.setProperty("partitionRecords", String.valueOf(records));
+            store();
+        }
+
+        /**
+         * Checks that range of output file at given offset still holds records written by previous run,
+         * comparing its CRC32 with the one saved after writing.
+         */
+        boolean outputDone(String outputFile, long outputOffset, long records) throws IOException {
+            String savedCrc = manifest.getProperty("outputCrc");
+            if (savedCrc == null
+                        || !String.valueOf(outputOffset).equals(manifest.getProperty("outputOffset"))
+                        || !String.valueOf(records).equals(manifest.getProperty("partitionRecords"))) {
+                return false;
+            }
+            CRC32 crc = new CRC32();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(4 << 20);
+            try (FileChannel output = FileChannel.open(Paths.get(outputFile), StandardOpenOption.READ)) {
+                long position = outputOffset * recordLength;
+                long end = position + records * recordLength;
+                while (position < end) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                    int read = output.read(buffer, position);
+                    if (read < 0) {
+                        return false;
+                    }
+                    buffer.flip();
+                    crc.update(buffer);
+                    position += read;
+                }
+            }
+            return Long.parseLong(savedCrc) == crc.getValue();
+        }
+
+        void saveOutput(long outputOffset, long crc) throws IOException {
+            manifest.setProperty("outputOffset", String.valueOf(outputOffset));
+            manifest.setProperty("outputCrc", String.valueOf(crc));
+            store();
+        }
+
+        private void store() throws IOException {
+            manifest.setProperty("runKey", runKey);
+            Path temp = manifestFile.resolveSibling(manifestFile.getFileName() + ".tmp");
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                manifest.store(out, "PcjTeraSort checkpoint");
+            }
+            Files.move(temp, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Sorts records that exceed memory limit and writes them as sorted runs to scratch directory.
+     */
+    private static class RunSpiller {
+        private final String spillDir;
+        private final String sortEngine;
+        private final int memoryRecords;
+        private final List<SpilledRun> runs = new ArrayList<>();
+
+        RunSpiller(String spillDir, String sortEngine, int memoryRecords) {
+            this.spillDir = spillDir;
+            this.sortEngine = sortEngine;
+            this.memoryRecords = memoryRecords;
+        }
+
+        void spill(RecordBuffer records) throws IOException {
+            long spillStart = System.nanoTime();
+            SortedRun run = SortedRun.sort(records, sortEngine);
+            Path file = Files.createTempFile(Paths.get(spillDir), "pcj-terasort-" + PCJ.myId() + "-", ".run");
+            file.toFile().deleteOnExit();
+            try (TeraFileOutput output = new TeraFileOutput(file.toString(), 0)) {
+                output.writeRuns(Collections.singletonList(run.cursor()));
+            }
+            runs.add(new SpilledRun(file, run.size()));
+            System.out.printf(Locale.ENGLISH, "Thread %d spilled run of %d elements in %.7f seconds%n",
+                    PCJ.myId(), run.size(), (System.nanoTime() - spillStart) / 1e9);
+        }
+    }
+
+    /**
+     * K-way merge of sorted runs using binary heap of run numbers ordered by their current records.
+     */
+    public static class RunMerger {
+        private final RunCursor[] runs;
+        private final long[] keyPrefixes;
+        private final int[] heap;
+        private int heapSize;
+        private int current;
+
+        public RunMerger(List<RunCursor> runs) throws IOException {
+            this.runs = runs.toArray(new RunCursor[0]);
+            keyPrefixes = new long[this.runs.length];
+            heap = new int[this.runs.length];
+            for (int i = 0; i < this.runs.length; ++i) {
+                if (this.runs[i].next()) {
+                    keyPrefixes[i] = this.runs[i].keyPrefix();
+                    heap[heapSize++] = i;
+                }
+            }
+            for (int i = heapSize / 2 - 1; i >= 0; --i) {
+                siftDown(i);
+            }
+            current = -1;
+        }
+
+        /**
+         * Moves to the next record in merged order. Returns false when all runs are exhausted.
+         */
+        public boolean next() throws IOException {
+            if (current >= 0) {
+                if (runs[current].next()) {
+                    keyPrefixes[current] = runs[current].keyPrefix();
+                } else {
+                    heap[0] = heap[--heapSize];
+                }
+                siftDown(0);
+            }
+            if (heapSize == 0) {
+                return false;
+            }
+            current = heap[0];
+            return true;
+        }
+
+        public byte[] page() {
+            return runs[current].page();
+        }
+
+        public int offset() {
+            return runs[current].offset();
+        }
+
+        private int compare(int run1, int run2) {
+            int result = Long.compareUnsigned(keyPrefixes[run1], keyPrefixes[run2]);
+            if (result != 0) {
+                return result;
+            }
+            return RecordBuffer.compareRecords(runs[run1].page(), runs[run1].offset(),
+                    runs[run2].page(), runs[run2].offset());
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int smallest = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+                if (left < heapSize && compare(heap[left], heap[smallest]) < 0) {
+                    smallest = left;
+                }
+                if (right < heapSize && compare(heap[right], heap[smallest]) < 0) {
+                    smallest = right;
+                }
+                if (smallest == i) {
+                    return;
+                }
+                int swap = heap[i];
+                heap[i] = heap[smallest];
+                heap[smallest] = swap;
+                i = smallest;
+            }
+        }
+    }
+
+    /**
+     * Measurements of single thread: duration of every phase (time from the previous phase mark), bytes
+     * read, bytes sent to and received from every thread, record counts and garbage collection activity.
+     * Garbage collection is measured for the whole JVM, so it is shared by threads running on the same node.
+     */
+    private static class Metrics implements Serializable {
+        private final int threadId;
+        private final Map<String, Long> phaseNanos = new LinkedHashMap<>();
+        private final long[] sentBytes;
+        private final long[] receivedBytes;
+        private long readRecords;
+        private long sortedRecords;
+        private long writtenRecords;
+        private long gcMillis;
+        private long gcCount;
+        private long uncompressedBytes;
+        private long compressedBytes;
+        private transient long lastMark;
+
+        Metrics(int threadId, int threadCount, long startTime) {
+            this.threadId = threadId;
+            sentBytes = new long[threadCount];
+            receivedBytes = new long[threadCount];
+            lastMark = startTime;
+            gcMillis = -gcMillis();
+            gcCount = -gcCount();
+        }
+
+        void mark(String phase, long now) {
+            phaseNanos.merge(phase, now - lastMark, Long::sum);
+            lastMark = now;
+        }
+
+        void finish() {
+            gcMillis += gcMillis();
+            gcCount += gcCount();
+        }
+
+        private static long gcMillis() {
+            return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                           .mapToLong(GarbageCollectorMXBean::getCollectionTime)
+                           .filter(time -> time > 0)
+                           .sum();
+        }
+
+        private static long gcCount() {
+            return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                           .mapToLong(GarbageCollectorMXBean::getCollectionCount)
+                           .filter(count -> count > 0)
+                           .sum();
+        }
+    }
+
+    /**
+     * Reduction of metrics of all threads to min, mean, max and skew (max divided by mean) of every phase
+     * duration and counter. Written as JSON (summary and per-thread values) or, for file with .csv
+     * extension, as CSV with one summary row per metric.
+     */
+    private static class MetricsSummary {
+        private final Metrics[] metrics;
+        private final long totalNanos;
+        private final List<Stat> stats = new ArrayList<>();
+
+        MetricsSummary(Metrics[] metrics, long totalNanos) {
+            this.metrics = metrics;
+            this.totalNanos = totalNanos;
+
+            List<String> phases = new ArrayList<>();
+            for (Metrics threadMetrics : metrics) {
+                for (String phase : threadMetrics.phaseNanos.keySet()) {
+                    if (!phases.contains(phase)) {
+                        phases.add(phase);
+                    }
+                }
+            }
+            for (String phase : phases) {
+                stats.add(new Stat("phase." + phase, "s", m -> m.phaseNanos.getOrDefault(phase, 0L) / 1e9));
+            }
+            stats.add(new Stat("read_bytes", "B", m -> m.readRecords * (double) recordLength));
+            stats.add(new Stat("sent_bytes", "B", m -> Arrays.stream(m.sentBytes).sum()));
+            stats.add(new Stat("received_bytes", "B", m -> Arrays.stream(m.receivedBytes).sum()));
+            stats.add(new Stat("sorted_records", "", m -> m.sortedRecords));
+            stats.add(new Stat("written_records", "", m -> m.writtenRecords));
+            stats.add(new Stat("gc_time", "ms", m -> m.gcMillis));
+            stats.add(new Stat("gc_count", "", m -> m.gcCount));
+            stats.add(new Stat("compression_ratio", "", m ->
+                    m.compressedBytes > 0 ? (double) m.uncompressedBytes / m.compressedBytes : 1.0));
+        }
+
+        void print() {
+            for (Stat stat : stats) {
+                System.out.printf(Locale.ENGLISH, "%-24s min %14.3f  mean %14.3f  max %14.3f  skew %5.2f (thread %d)%n",
+                        stat.name, stat.min, stat.mean, stat.max, stat.skew, stat.maxThread);
+            }
+        }
+
+        void write(Path file) throws IOException {
+            try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                if (file.toString().endsWith(".csv")) {
+                    writeCsv(writer);
+                } else {
+                    writeJson(writer);
+                }
+            }
+        }
+
+        private void writeCsv(Writer writer) throws IOException {
+            writer.write("metric,unit,min,mean,max,skew,max_thread\n");
+            for (Stat stat : stats) {
+                writer.write(String.format(Locale.ENGLISH, "%s,%s,%.6f,%.6f,%.6f,%.4f,%d%n",
+                        stat.name, stat.unit, stat.min, stat.mean, stat.max, stat.skew, stat.maxThread));
+            }
+        }
+
+        private void writeJson(Writer writer) throws IOException {
+            writer.write(String.format(Locale.ENGLISH, "{\n  \"threads\": %d,\n  \"totalSeconds\": %.9f,\n  \"summary\": [",
+                    metrics.length, totalNanos / 1e9));
+            for (int i = 0; i < stats.size(); ++i) {
+                Stat stat = stats.get(i);
+                writer.write(String.format(Locale.ENGLISH, "%s\n    {\"metric\": \"%s\", \"unit\": \"%s\", \"min\": %.6f,"
+                                                                   + " \"mean\": %.6f, \"max\": %.6f, \"skew\": %.4f, \"maxThread\": %d}",
+                        i > 0 ? "," : "", stat.name, stat.unit, stat.min, stat.mean, stat.max, stat.skew, stat.maxThread));
+            }
+            writer.write("\n  ],\n  \"perThread\": [");
+            for (int i = 0; i < metrics.length; ++i) {
+                Metrics m = metrics[i];
+                StringBuilder phases = new StringBuilder();
+                for (Map.Entry<String, Long> phase : m.phaseNanos.entrySet()) {
+                    phases.append(phases.length() > 0 ? ", " : "")
+                            .append(String.format(Locale.ENGLISH, "\"%s\": %.9f", phase.getKey(), phase.getValue() / 1e9));
+                }
+                writer.write(String.format(Locale.ENGLISH, "%s\n    {\"thread\": %d, \"phases\": {%s}, \"readBytes\": %d,"
+                                                                   + " \"sentBytes\": %s, \"receivedBytes\": %s, \"sortedRecords\": %d,"
+                                                                   + " \"writtenRecords\": %d, \"gcMillis\": %d, \"gcCount\": %d}",
+                        i > 0 ? "," : "", m.threadId, phases, m.readRecords * recordLength,
+                        Arrays.toString(m.sentBytes), Arrays.toString(m.receivedBytes),
+                        m.sortedRecords, m.writtenRecords, m.gcMillis, m.gcCount));
+            }
+            writer.write("\n  ]\n}\n");
+        }
+
+        private class Stat {
+            private final String name;
+            private final String unit;
+            private double min = Double.POSITIVE_INFINITY;
+            private double max = Double.NEGATIVE_INFINITY;
+            private double mean;
+            private double skew;
+            private int maxThread;
+
+            Stat(String name, String unit, ToDoubleFunction<Metrics> value) {
+                this.name = name;
+                this.unit = unit;
+                for (Metrics m : metrics) {
+                    double v = value.applyAsDouble(m);
+                    min = Math.min(min, v);
+                    if (v > max) {
+                        max = v;
+                        maxThread = m.threadId;
+                    }
+                    mean += v / metrics.length;
+                }
+                skew = mean > 0 ? max / mean : 1.0;
+            }
+        }
+    }
+
+    public static class Text implements Comparable<Text>, Serializable {
+
+        private byte[] value;
+
+        public Text(byte[] value) {
+            this.value = value.clone();
+        }
+
+        @Override
+        public int compareTo(Text other) {
+            byte[] buffer1 = this.value;
+            byte[] buffer2 = other.value;
+            if (buffer1 == buffer2) {
+                return 0;
+            }
+
+            for (int i = 0, j = 0; i < buffer1.length && j < buffer2.length; ++i, ++j) {
+                int a = (buffer1[i] & 0xFF);
+                int b = (buffer2[i] & 0xFF);
+                if (a != b) {
+                    return a - b;
+                }
+            }
+            return buffer1.length - buffer2.length;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Text)) {
+                return false;
+            }
+            Text that = (Text) obj;
+            return this.compareTo(that) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(value);
         }
 
         @Override
         public String toString() {
-            return "Element{" +
-                           "key=" + key +
-                           ", value=" + value +
-                           '}';
+            StringBuilder sb = new StringBuilder("Text{");
+            for (byte b : value) {
+                if ((b & 0xF0) == 0) sb.append('0');
+                sb.append(Integer.toHexString(b & 0xFF));
+            }
+            sb.append('}');
+            return sb.toString();
         }
     }
 }
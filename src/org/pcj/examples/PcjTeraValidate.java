@@ -0,0 +1,122 @@
+package org.pcj.examples;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import org.pcj.PCJ;
+import org.pcj.RegisterStorage;
+import org.pcj.StartPoint;
+import org.pcj.Storage;
+import org.pcj.examples.PcjTeraSort.RecordBuffer;
+import org.pcj.examples.PcjTeraSort.TeraFileInput;
+
+/**
+ * Parallel validator of TeraSort output. Every thread checks order of records in own slice of the file
+ * and against the last record of the preceding slice, and computes checksum (sum of CRC32 of records)
+ * that can be compared with the one reported by {@link PcjTeraGen}.
+ */
+@RegisterStorage(PcjTeraValidate.Vars.class)
+public class PcjTeraValidate implements StartPoint {
+
+    private static final int recordLength = 100;
+    private static final int chunkRecords = 10_000;
+
+    @Storage(PcjTeraValidate.class)
+    enum Vars {
+        checksums, errors
+    }
+
+    private long[] checksums;
+    private long[] errors;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Parameters: <input-file> <nodes-file>");
+            return;
+        }
+        PCJ.executionBuilder(PcjTeraValidate.class)
+                .addProperty("inputFile", args[0])
+                .addNodes(new File(args[1]))
+                .deploy();
+    }
+
+    @Override
+    public void main() throws Throwable {
+        String inputFile = PCJ.getProperty("inputFile");
+        if (PCJ.myId() == 0) {
+            checksums = new long[PCJ.threadCount()];
+            errors = new long[PCJ.threadCount()];
+        }
+        PCJ.barrier();
+
+        long startTime = System.nanoTime();
+        long checksum = 0;
+        long unordered = 0;
+        long totalRecords;
+        long localRecords;
+        try (TeraFileInput input = new TeraFileInput(inputFile)) {
+            totalRecords = input.length();
+            localRecords = totalRecords / PCJ.threadCount();
+            long reminderRecords = totalRecords - localRecords * PCJ.threadCount();
+            long startRecord = PCJ.myId() * localRecords + Math.min(PCJ.myId(), reminderRecords);
+            if (PCJ.myId() < reminderRecords) {
+                ++localRecords;
+            }
+
+            // last record of preceding slice is compared with the first one of own slice
+            RecordBuffer previous = new RecordBuffer(1);
+            if (startRecord > 0 && localRecords > 0) {
+                input.seek(startRecord - 1);
+                input.readRecord(previous);
+            }
+
+            CRC32 crc = new CRC32();
+            RecordBuffer chunk = new RecordBuffer(chunkRecords);
+            input.seek(startRecord);
+            for (long i = 0; i < localRecords; ) {
+                chunk.clear();
+                int count = input.readRecords(chunk, (int) Math.min(chunkRecords, localRecords - i));
+                for (int j = 0; j < count; ++j) {
+                    if (j == 0 ? previous.size() > 0 && previous.compare(0, chunk, 0) > 0
+                                : chunk.compare(j - 1, j) > 0) {
+                        if (unordered == 0) {
+                            System.err.printf(Locale.ENGLISH, "Thread %d: record %d is out of order%n",
+                                    PCJ.myId(), startRecord + i + j);
+                        }
+                        ++unordered;
+                    }
+                    crc.reset();
+                    crc.update(chunk.page(j), chunk.offset(j), recordLength);
+                    checksum += crc.getValue();
+                }
+                previous.clear();
+                if (count > 0) {
+                    previous.append(chunk, count - 1);
+                }
+                i += count;
+            }
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        System.out.printf(Locale.ENGLISH, "Thread %d validated %d records in %.7f seconds, %d out of order%n",
+                PCJ.myId(), localRecords, seconds, unordered);
+
+        PCJ.asyncPut(checksum, 0, Vars.checksums, PCJ.myId());
+        PCJ.asyncPut(unordered, 0, Vars.errors, PCJ.myId());
+        if (PCJ.myId() == 0) {
+            PCJ.waitFor(Vars.checksums, PCJ.threadCount());
+            PCJ.waitFor(Vars.errors, PCJ.threadCount());
+            long totalChecksum = 0;
+            long totalErrors = 0;
+            for (int i = 0; i < PCJ.threadCount(); ++i) {
+                totalChecksum += checksums[i];
+                totalErrors += errors[i];
+            }
+            double totalSeconds = (System.nanoTime() - startTime) / 1e9;
+            System.out.printf(Locale.ENGLISH, "Validated %d records in %.7f seconds (%.1f MB/s)%n",
+                    totalRecords, totalSeconds, totalRecords * recordLength / totalSeconds / 1e6);
+            System.out.printf(Locale.ENGLISH, "Checksum: %016x%n", totalChecksum);
+            System.out.println(totalErrors == 0 ? "Output is sorted" : "Output is NOT sorted: " + totalErrors + " records out of order");
+        }
+    }
+}
@@ -1,11 +1,15 @@
 package org.pcj.examples;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.Serializable;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongBinaryOperator;
+import java.util.stream.IntStream;
 import org.pcj.AsyncTask;
 import org.pcj.PCJ;
 import org.pcj.PcjFuture;
@@ -19,19 +23,25 @@ public class RandomAccessAsyncAt implements StartPoint {
     @Storage(RandomAccessAsyncAt.class)
     enum Shared {
 
-        table, receivedUpdates, test, okCells, executed, updatesShared
+        table, receivedUpdates, test, okCells, executed, updatesShared, flowMetrics, subtreeOkCells, putSlots
     }
 
     //shared variables
-    private long[] table;
-    private ArrayList<Long>[][] receivedUpdates;
+    private AtomicLongArray table;
+    private UpdateMessage[][] receivedUpdates;
     Integer test;
     private int okCells;
     private int executed;
     List<Long> updatesShared[];
+    private double[] flowMetrics;
+    private long[] subtreeOkCells = new long[Integer.SIZE];
+    private long[][][] putSlots;
 
     public static final int BUFFERED_UPDATES = 1024;
     public static final long POISON_PILL = -1;
+    private static final long[] ACKNOWLEDGEMENT = new long[0];
+    public static final int MAX_WINDOW = 400;
+    public static final int VERIFY_CHUNK = 1 << 16;
 
     public static void main(String[] args) throws IOException {
         String[] nodes = {
@@ -41,6 +51,11 @@ public class RandomAccessAsyncAt implements StartPoint {
                 "localhost"
         };
         PCJ.executionBuilder(RandomAccessAsyncAt.class)
+                .addProperty("mode", System.getProperty("mode", "task")) // task, batched, put or hypercube
+                .addProperty("batchSize", System.getProperty("batchSize", String.valueOf(BUFFERED_UPDATES)))
+                .addProperty("window", System.getProperty("window", String.valueOf(MAX_WINDOW)))
+                .addProperty("adaptiveWindow", System.getProperty("adaptiveWindow", "false"))
+                .addProperty("verify", System.getProperty("verify", "local")) // local or distributed
                 .addNodes(nodes)
                 .deploy();
     }
@@ -55,6 +70,12 @@ public class RandomAccessAsyncAt implements StartPoint {
     int myId;
 
     RandomForRA random;
+    String mode;
+    int batchSize;
+    int window;
+    boolean adaptiveWindow;
+    String verify;
+    FlowController flow;
 
     long timeBoundSeconds = Long.MAX_VALUE;
     boolean shutDown = false;
@@ -66,71 +87,166 @@ public class RandomAccessAsyncAt implements StartPoint {
         String[] rounds = {"Warmup", "After warmup"};
         for (String round : rounds) {
 
+            Config config = Config.fromProperties();
             if (PCJ.myId() == 0) {
-                System.out.println(round + " round");
+                System.out.println(round + " round, mode: " + config.mode + ("task".equals(config.mode) ? "" : ", batch size: " + config.batchSize)
+                                           + ("hypercube".equals(config.mode) ? "" : ", max window: " + config.window)
+                                           + (config.adaptiveWindow && usesFlowControl(config.mode) ? " (adaptive)" : ""));
             }
 
-            initializeData();
+            RoundResult result = runRound(config);
+            if (myId == 0) {
+                System.out.println("Time: " + result.seconds + " s, global size = " + result.tableSize + " updates = " + result.updates + ", performance: " + result.gups());
+                if (usesFlowControl(mode)) {
+                    double windowSum = 0;
+                    double maxStall = 0;
+                    for (int PE = 0; PE < PCJ.threadCount(); PE++) {
+                        double[] peFlow = PCJ.get(PE, Shared.flowMetrics);
+                        windowSum += peFlow[0];
+                        maxStall = Math.max(maxStall, peFlow[1]);
+                    }
+                    System.out.printf(Locale.ENGLISH, "Flow control: average window %.1f, max stall time %.3f s%n",
+                            windowSum / PCJ.threadCount(), maxStall);
+                }
+            }
             PCJ.barrier();
-            double start = System.currentTimeMillis();
-            performRandomAccess();
 
-            PCJ.barrier();
-            double stop = System.currentTimeMillis();
+        }
+    }
 
-            PCJ.barrier();
-            if (PCJ.myId() == 0) {
-                System.out.println("Thread 0 verifying");
-            }
-            verifyResultsLocally();
-            thread0VerifyAll();
-            if (myId == 0) {
-                double seconds = (stop - start) * 1e-3;
-                int updatesPerformedGlobally = 0;
-                for (int PE = 0; PE < PCJ.threadCount(); PE++) {
-                    updatesPerformedGlobally += (int) PCJ.get(PE, Shared.executed);
+    private static boolean usesFlowControl(String mode) {
+        return "task".equals(mode) || "batched".equals(mode);
+    }
+
+    /**
+     * Parameters of single round of the benchmark.
+     */
+    static class Config {
+
+        int logN = 20;
+        long timeBoundSeconds = Long.MAX_VALUE;
+        int updatesPerCell = 4;
+        String mode = "task";
+        int batchSize = BUFFERED_UPDATES;
+        int window = MAX_WINDOW;
+        boolean adaptiveWindow = false;
+        String verify = "local";
+
+        /**
+         * Reads table size and optional time bound from ra.config, the rest from properties of the run.
+         */
+        static Config fromProperties() {
+            Config config = new Config();
+            try (Scanner in = new Scanner(new File("ra.config"))) {
+                config.logN = in.nextInt();
+                if (in.hasNextLong()) {
+                    config.timeBoundSeconds = in.nextLong();
                 }
-                double gups = updatesPerformedGlobally * 1e-9 / seconds;
-                System.out.println("Time: " + seconds + " s, global size = " + this.globalN + " updates = " + updatesPerformedGlobally + ", performance: " + gups);
+            } catch (IOException ex) {
+                config.logN = 20;
+                config.timeBoundSeconds = 60;
             }
-            PCJ.barrier();
+            config.mode = PCJ.getProperty("mode", "task");
+            config.batchSize = Integer.parseInt(PCJ.getProperty("batchSize", String.valueOf(BUFFERED_UPDATES)));
+            config.window = Integer.parseInt(PCJ.getProperty("window", String.valueOf(MAX_WINDOW)));
+            config.adaptiveWindow = Boolean.parseBoolean(PCJ.getProperty("adaptiveWindow", "false"));
+            config.verify = PCJ.getProperty("verify", "local");
+            return config;
+        }
+    }
+
+    /**
+     * Outcome of single round, filled in thread 0 only.
+     */
+    static class RoundResult {
 
+        double seconds;
+        long updates;
+        long tableSize;
+        long wrongCells;
+
+        double gups() {
+            return updates * 1e-9 / seconds;
+        }
+
+        double errorRate() {
+            return (double) wrongCells / tableSize;
         }
     }
 
-    private void initializeData() throws FileNotFoundException {
+    /**
+     * Runs single timed round with given parameters followed by verification. Has to be called by all threads.
+     */
+    RoundResult runRound(Config config) {
+        initializeData(config);
+
+        PCJ.barrier();
+        long start = System.nanoTime();
+        performRandomAccess();
+
+        PCJ.barrier();
+        long stop = System.nanoTime();
+
+        PCJ.barrier();
+        if (PCJ.myId() == 0) {
+            System.out.println("Thread 0 verifying");
+        }
+        long wrongCells;
+        if ("distributed".equals(verify)) {
+            wrongCells = verifyResultsDistributed();
+        } else {
+            verifyResultsLocally();
+            wrongCells = thread0VerifyAll();
+        }
 
-        try (Scanner in = new Scanner(new File("ra.config"))) {
-            logN = in.nextInt();
-            if (in.hasNextLong()) {
-                this.timeBoundSeconds = in.nextLong();
+        RoundResult result = new RoundResult();
+        if (myId == 0) {
+            result.seconds = (stop - start) / 1e9;
+            for (int PE = 0; PE < PCJ.threadCount(); PE++) {
+                result.updates += (int) PCJ.get(PE, Shared.executed);
             }
-        } catch (IOException ex) {
-            logN = 20;
-            this.timeBoundSeconds = 60;
+            result.tableSize = globalN;
+            result.wrongCells = wrongCells;
         }
+        PCJ.barrier();
+        return result;
+    }
+
+    private void initializeData(Config config) {
+
+        logN = config.logN;
+        timeBoundSeconds = config.timeBoundSeconds;
+        mode = config.mode;
+        batchSize = config.batchSize;
+        window = config.window;
+        adaptiveWindow = config.adaptiveWindow;
+        verify = config.verify;
         threadCount = PCJ.threadCount();
         myId = PCJ.myId();
         logNumProcs = (int) (Math.log(threadCount) / Math.log(2));
         logLocalN = logN - logNumProcs;
         localN = 1 << logLocalN;
         globalN = localN * threadCount;
-        localUpdates = 4 * localN;
-        long[] table = new long[localN];
+        localUpdates = (long) config.updatesPerCell * localN;
+        AtomicLongArray table = new AtomicLongArray(localN);
         for (int i = 0; i < localN; i++) {
-            table[i] = i + myId * localN;
+            table.set(i, i + myId * localN);
         }
 
         PCJ.putLocal(table, Shared.table);
         PCJ.putLocal(0, Shared.executed);
         PCJ.putLocal(0, Shared.okCells);
-        PCJ.putLocal(new ArrayList<?>[(int) (localUpdates / BUFFERED_UPDATES)][logNumProcs + 1], Shared.receivedUpdates);
+        PCJ.putLocal(new UpdateMessage[2][logNumProcs + 1], Shared.receivedUpdates);
+        PCJ.putLocal(new long[threadCount][2 * window][], Shared.putSlots);
 
         PCJ.monitor(Shared.receivedUpdates);
         PCJ.monitor(Shared.executed);
         PCJ.monitor(Shared.okCells);
         PCJ.monitor(Shared.table);
+        PCJ.monitor(Shared.subtreeOkCells);
+        PCJ.monitor(Shared.putSlots);
         random = new RandomForRA(myId);
+        flow = new FlowController(threadCount, window, adaptiveWindow);
         this.preparedLocally = 0;
         this.shutDown = false;
     }
@@ -148,12 +264,31 @@ public class RandomAccessAsyncAt implements StartPoint {
     }
 
     private void performRandomAccess() {
+        switch (mode) {
+            case "task":
+                performTaskUpdates();
+                break;
+            case "batched":
+                performBatchedUpdates();
+                break;
+            case "put":
+                performPutUpdates();
+                break;
+            case "hypercube":
+                performHypercubeUpdates();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+    }
+
+    /**
+     * Sends every update as separate task.
+     */
+    private void performTaskUpdates() {
         long timeBoundStart = System.currentTimeMillis();
         int executedInThread = 0;
 
-        int futuresIndex = 0;
-        PcjFuture[] futures = new PcjFuture[400];
-
         for (int update = 0; update < localUpdates; update++) {
             final long randomLocation = generateRandomUpdate();
 
@@ -163,15 +298,40 @@ public class RandomAccessAsyncAt implements StartPoint {
 
             final int finalLocalN = localN;
 
-            PcjFuture<Void> future = PCJ.asyncAt(whichPE(randomLocation), new UpdateTask(randomLocation, finalLocalN));
+            int PE = whichPE(randomLocation);
+            flow.acquire(PE);
+            flow.add(PE, PCJ.asyncAt(PE, new UpdateTask(randomLocation, finalLocalN)));
+
+            executedInThread++;
 
-            futures[futuresIndex++] = future;
-            if (futuresIndex == futures.length) {
-                for (PcjFuture f : futures) {
-                    f.get();
+            if (isTimeBound()) {
+                if (shutDown) {
+                    break;
                 }
-                futuresIndex = 0;
             }
+        }
+        flow.drain();
+        PCJ.putLocal(executedInThread, Shared.executed);
+        PCJ.putLocal(flow.metrics(), Shared.flowMetrics);
+    }
+
+    /**
+     * Accumulates updates in batches per destination PE and sends every full batch as single task,
+     * which applies all its updates.
+     */
+    private void performBatchedUpdates() {
+        long timeBoundStart = System.currentTimeMillis();
+        int executedInThread = 0;
+
+        UpdateBatches batches = new UpdateBatches();
+        for (int update = 0; update < localUpdates; update++) {
+            final long randomLocation = generateRandomUpdate();
+
+            if (isTimeBound()) {
+                shutDown = System.currentTimeMillis() - timeBoundStart > timeBoundSeconds * 1e3;
+            }
+
+            batches.add(randomLocation);
 
             executedInThread++;
 
@@ -181,43 +341,293 @@ public class RandomAccessAsyncAt implements StartPoint {
                 }
             }
         }
+        batches.flush();
         PCJ.putLocal(executedInThread, Shared.executed);
+        PCJ.putLocal(flow.metrics(), Shared.flowMetrics);
     }
 
-    int whichPE(long pos) {
-        return (int) (pos >> logLocalN) & (threadCount - 1);
+    /**
+     * Per-destination batches of updates, every full batch is sent as single task.
+     */
+    private class UpdateBatches {
+
+        private final long[][] batches = new long[threadCount][batchSize];
+        private final int[] batchFill = new int[threadCount];
+
+        void add(long update) {
+            int PE = whichPE(update);
+            batches[PE][batchFill[PE]++] = update;
+            if (batchFill[PE] == batchSize) {
+                send(PE, batches[PE]);
+                batches[PE] = new long[batchSize];
+                batchFill[PE] = 0;
+            }
+        }
+
+        /**
+         * Sends remaining updates and waits until all batches are applied.
+         */
+        void flush() {
+            for (int PE = 0; PE < threadCount; PE++) {
+                if (batchFill[PE] > 0) {
+                    send(PE, Arrays.copyOf(batches[PE], batchFill[PE]));
+                    batchFill[PE] = 0;
+                }
+            }
+            flow.drain();
+        }
+
+        private void send(int PE, long[] updates) {
+            flow.acquire(PE);
+            flow.add(PE, PCJ.asyncAt(PE, new BatchUpdateTask(updates, localN)));
+        }
+    }
+
+    /**
+     * Accumulates updates in batches per destination PE and puts every full batch with asyncPut into
+     * a receive slot of the destination, which applies received batches itself.
+     */
+    private void performPutUpdates() {
+        long timeBoundStart = System.currentTimeMillis();
+        int executedInThread = 0;
+
+        PutBatches batches = new PutBatches();
+        for (int update = 0; update < localUpdates; update++) {
+            final long randomLocation = generateRandomUpdate();
+
+            if (isTimeBound()) {
+                shutDown = System.currentTimeMillis() - timeBoundStart > timeBoundSeconds * 1e3;
+            }
+
+            batches.add(randomLocation);
+
+            executedInThread++;
+
+            if (isTimeBound()) {
+                if (shutDown) {
+                    break;
+                }
+            }
+        }
+        batches.flush();
+        PCJ.putLocal(executedInThread, Shared.executed);
+    }
+
+    /**
+     * Per-destination batches of updates exchanged with asyncPut only. Every PE keeps window receive slots
+     * for every other PE, used in turn, followed by as many slots for acknowledgements. Received batches are
+     * applied in order whenever PE sends or waits, and every applied batch is acknowledged by a put into
+     * the sender's acknowledgement slot, after which the sender may reuse the receive slot. Empty batch
+     * marks the end of updates from its sender. Updates of own part of the table are applied directly.
+     */
+    private class PutBatches {
+
+        private final AtomicLongArray table = PCJ.getLocal(Shared.table);
+        private final long[][][] slots = PCJ.getLocal(Shared.putSlots);
+        private final long[][] batches = new long[threadCount][batchSize];
+        private final int[] batchFill = new int[threadCount];
+        private final int[] sent = new int[threadCount];
+        private final int[] received = new int[threadCount];
+        private final boolean[][] unacknowledged = new boolean[threadCount][window];
+        private int unacknowledgedCount;
+        private int finishedSenders;
+
+        void add(long update) {
+            int PE = whichPE(update);
+            if (PE == myId) {
+                UpdateApplier.apply(table, update, localN - 1);
+                return;
+            }
+            batches[PE][batchFill[PE]++] = update;
+            if (batchFill[PE] == batchSize) {
+                send(PE, batches[PE]);
+                batches[PE] = new long[batchSize];
+                batchFill[PE] = 0;
+            }
+        }
+
+        /**
+         * Sends remaining updates with end marks, then applies batches until all PEs finished and waits
+         * for acknowledgements of own batches, so no put arrives after the round.
+         */
+        void flush() {
+            for (int PE = 0; PE < threadCount; PE++) {
+                if (PE != myId) {
+                    if (batchFill[PE] > 0) {
+                        send(PE, Arrays.copyOf(batches[PE], batchFill[PE]));
+                        batchFill[PE] = 0;
+                    }
+                    send(PE, new long[0]);
+                }
+            }
+            while (finishedSenders < threadCount - 1 || unacknowledgedCount > 0) {
+                boolean progress = applyReceived();
+                for (int PE = 0; PE < threadCount && unacknowledgedCount > 0; PE++) {
+                    for (int slot = 0; slot < window; slot++) {
+                        progress |= acknowledged(PE, slot);
+                    }
+                }
+                if (!progress) {
+                    PCJ.waitFor(Shared.putSlots);
+                }
+            }
+        }
+
+        private void send(int PE, long[] updates) {
+            int slot = sent[PE] % window;
+            while (!acknowledged(PE, slot)) {
+                if (!applyReceived()) {
+                    PCJ.waitFor(Shared.putSlots);
+                }
+            }
+            PCJ.asyncPut(updates, PE, Shared.putSlots, myId, slot);
+            unacknowledged[PE][slot] = true;
+            unacknowledgedCount++;
+            sent[PE]++;
+            applyReceived();
+        }
+
+        /**
+         * Returns whether the receive slot on PE is free, collecting its acknowledgement if it arrived.
+         */
+        private boolean acknowledged(int PE, int slot) {
+            if (!unacknowledged[PE][slot]) {
+                return true;
+            }
+            if (slots[PE][window + slot] == null) {
+                return false;
+            }
+            slots[PE][window + slot] = null;
+            unacknowledged[PE][slot] = false;
+            unacknowledgedCount--;
+            return true;
+        }
+
+        private boolean applyReceived() {
+            boolean applied = false;
+            for (int source = 0; source < threadCount; source++) {
+                int slot = received[source] % window;
+                long[] updates;
+                while ((updates = slots[source][slot]) != null) {
+                    slots[source][slot] = null;
+                    if (updates.length == 0) {
+                        finishedSenders++;
+                    } else {
+                        UpdateApplier.apply(table, updates, updates.length, localN - 1);
+                    }
+                    PCJ.asyncPut(ACKNOWLEDGEMENT, source, Shared.putSlots, myId, window + slot);
+                    slot = ++received[source] % window;
+                    applied = true;
+                }
+            }
+            return applied;
+        }
+    }
+
+    /**
+     * Routes updates along dimensions of hypercube, like HPCC RandomAccess reference implementation.
+     * In every round PE generates batch of updates, then in stage d exchanges with PE (myId ^ 2^d) the updates
+     * whose destination PE differs from own number in bit d, so after log2(P) stages all held updates are
+     * local. Every message carries shutdown flag, so the decision to stop reaches all PEs within the round.
+     */
+    private void performHypercubeUpdates() {
+        if (Integer.bitCount(threadCount) != 1) {
+            throw new IllegalStateException("Hypercube routing requires number of PEs to be power of two");
+        }
+        long timeBoundStart = System.currentTimeMillis();
+        int executedInThread = 0;
+
+        AtomicLongArray table = PCJ.getLocal(Shared.table);
+        long[] updates = new long[batchSize];
+        long[] kept = new long[batchSize];
+        long[] sent = new long[batchSize];
+        UpdateMessage[][] receivedUpdates = PCJ.getLocal(Shared.receivedUpdates);
+        boolean stop = false;
+
+        for (int round = 0; executedInThread < localUpdates && !stop; round++) {
+            int count = (int) Math.min(batchSize, localUpdates - executedInThread);
+            random.fill(updates, 0, count);
+            executedInThread += count;
+
+            if (isTimeBound()) {
+                shutDown = System.currentTimeMillis() - timeBoundStart > timeBoundSeconds * 1e3;
+            }
+            stop = shutDown;
+
+            for (int stage = 0; stage < logNumProcs; stage++) {
+                int bit = 1 << stage;
+                if (kept.length < count) {
+                    kept = new long[updates.length];
+                    sent = new long[updates.length];
+                }
+                int keptCount = 0;
+                int sentCount = 0;
+                for (int i = 0; i < count; i++) {
+                    if ((whichPE(updates[i]) & bit) == (myId & bit)) {
+                        kept[keptCount++] = updates[i];
+                    } else {
+                        sent[sentCount++] = updates[i];
+                    }
+                }
+                UpdateMessage message = new UpdateMessage(Arrays.copyOf(sent, sentCount), stop);
+                PCJ.asyncPut(message, myId ^ bit, Shared.receivedUpdates, round % 2, stage);
+
+                // messages of next stages may come first, so wait until this stage's slot is filled
+                UpdateMessage received;
+                while ((received = receivedUpdates[round % 2][stage]) == null) {
+                    PCJ.waitFor(Shared.receivedUpdates);
+                }
+                receivedUpdates[round % 2][stage] = null;
+                stop |= received.shutDown;
+
+                count = keptCount + received.updates.length;
+                if (updates.length < count) {
+                    updates = new long[count];
+                }
+                System.arraycopy(kept, 0, updates, 0, keptCount);
+                System.arraycopy(received.updates, 0, updates, keptCount, received.updates.length);
+            }
+
+            UpdateApplier.apply(table, updates, count, localN - 1);
+        }
+        PCJ.putLocal(executedInThread, Shared.executed);
     }
 
-    private void updateSingleCell(long update) throws ClassCastException {
-        int localOffset = randomNumberToLocalPosition(update);
-        long val = PCJ.getLocal(Shared.table, localOffset);
-        val ^= update;
-        PCJ.putLocal(val, Shared.table, localOffset);
+    int whichPE(long pos) {
+        return (int) (pos >> logLocalN) & (threadCount - 1);
     }
 
     private void verifyResultsLocally() {
         PCJ.barrier();
 
+        AtomicLongArray localTable = PCJ.getLocal(Shared.table);
         for (int PE = 0; PE < threadCount; PE++) {
-            RandomForRA random = new RandomForRA(PE);
+            final int finalPE = PE;
+            final int executedInThread = PCJ.get(PE, Shared.executed);
 
-            int executedInThread = PCJ.get(PE, Shared.executed);
-            for (int update = 0; update < executedInThread; update++) {
-                long val = random.nextLong();
-                if (whichPE(val) == myId) {
-
-                    updateSingleCell(val);
+            // stream of PE is replayed in chunks, each generated from its own position, in parallel
+            int chunks = (executedInThread + VERIFY_CHUNK - 1) / VERIFY_CHUNK;
+            IntStream.range(0, chunks).parallel().forEach(chunk -> {
+                RandomForRA random = new RandomForRA(finalPE);
+                random.skip((long) chunk * VERIFY_CHUNK);
+                long[] block = new long[VERIFY_CHUNK];
+                int count = Math.min(VERIFY_CHUNK, executedInThread - chunk * VERIFY_CHUNK);
+                random.fill(block, 0, count);
+                for (int i = 0; i < count; i++) {
+                    if (whichPE(block[i]) == myId) {
+                        UpdateApplier.apply(localTable, block[i], localN - 1);
+                    }
                 }
-            }
+            });
         }
 
-        long[] table = PCJ.getLocal(Shared.table);
+        AtomicLongArray table = PCJ.getLocal(Shared.table);
         int ok = 0;
-        for (int i = 0; i < table.length; i++) {
-            if (table[i] == i + myId * localN) {
+        for (int i = 0; i < table.length(); i++) {
+            if (table.get(i) == i + myId * localN) {
                 ok++;
             } else {
-                //PCJ.log("Cell #" + i + " is " + table[i] + ", should be: " + (i + myId * localN));
+                //PCJ.log("Cell #" + i + " is " + table.get(i) + ", should be: " + (i + myId * localN));
             }
         }
         PCJ.putLocal(ok, Shared.okCells);
@@ -225,29 +635,116 @@ public class RandomAccessAsyncAt implements StartPoint {
         PCJ.barrier();
     }
 
-    private void thread0VerifyAll() {
+    /**
+     * Every PE replays only its own stream of updates and sends them in batches to the owning PEs once more,
+     * which brings the table back to its initial state, as update is XOR. Counts of correct cells are then
+     * summed up a binomial tree to thread 0, which returns the number of wrong cells.
+     */
+    private long verifyResultsDistributed() {
+        PCJ.barrier();
+
+        RandomForRA random = new RandomForRA(myId);
+        int executedInThread = PCJ.getLocal(Shared.executed);
+        UpdateBatches corrections = new UpdateBatches();
+        long[] block = new long[VERIFY_CHUNK];
+        for (int update = 0; update < executedInThread; update += VERIFY_CHUNK) {
+            int count = Math.min(VERIFY_CHUNK, executedInThread - update);
+            random.fill(block, 0, count);
+            for (int i = 0; i < count; i++) {
+                corrections.add(block[i]);
+            }
+        }
+        corrections.flush();
+        PCJ.barrier();
+
+        AtomicLongArray table = PCJ.getLocal(Shared.table);
+        int ok = 0;
+        for (int i = 0; i < table.length(); i++) {
+            if (table.get(i) == i + myId * localN) {
+                ok++;
+            }
+        }
+        PCJ.putLocal(ok, Shared.okCells);
+
+        // thread receives sums from threads myId + 2^k for k below its lowest set bit
+        int children = 0;
+        for (int step = 1; step < threadCount && (myId & step) == 0; step <<= 1) {
+            if (myId + step < threadCount) {
+                ++children;
+            }
+        }
+        long wrong = 0;
+        PCJ.waitFor(Shared.subtreeOkCells, children);
+        long[] subtreeOkCells = PCJ.getLocal(Shared.subtreeOkCells);
+        long subtreeOk = ok;
+        for (int level = 0; level < children; ++level) {
+            subtreeOk += subtreeOkCells[level];
+        }
+        if (myId != 0) {
+            int level = Integer.numberOfTrailingZeros(myId);
+            PCJ.asyncPut(subtreeOk, myId - (1 << level), Shared.subtreeOkCells, level);
+        } else {
+            wrong = (long) globalN - subtreeOk;
+            if (wrong != 0) {
+                System.out.printf(Locale.ENGLISH, "Verification failed: %d of %d cells wrong (error rate %.6f%%)%n",
+                        wrong, globalN, 100.0 * wrong / globalN);
+            }
+        }
+        PCJ.barrier();
+        return wrong;
+    }
+
+    private long thread0VerifyAll() {
+        long wrong = 0;
         if (myId == 0) {
             for (int i = 0; i < threadCount; i++) {
                 int remoteOk = PCJ.get(i, Shared.okCells);
                 if (remoteOk != localN) {
                     System.out.println("Verification failed for thread #" + i + " notOKCells = " + remoteOk);
                 }
+                wrong += localN - remoteOk;
             }
         }
+        return wrong;
     }
 
+    /**
+     * Generator of HPCC RandomAccess sequence (x^n in GF(2)[x] modulo POLY). Any position is reached in
+     * O(log n) steps with the table of even powers, which is computed once and shared, so streams can be
+     * split into chunks generated independently.
+     */
     private static class RandomForRA {
 
         public static final long POLY = 0x0000000000000007;
         public static final long PERIOD = 1317624576693539401L;
+        /* unsigned */
+        private static final long[] m2 = new long[64];
+        /* unsigned */
         private long rand;
+        private long position;
+
+        static {
+            long temp = 0x1;
+            for (int i = 0; i < 64; i++) {
+                m2[i] = temp;
+                temp = step(step(temp));
+            }
+        }
 
         public RandomForRA(int initialVal) {
-            long n = initialVal * 4;
+            seek(initialVal * 4L);
+        }
+
+        private static long step(long value) {
+            return (value << 1) ^ (value < 0L ? POLY : 0L);
+        }
+
+        /**
+         * Returns element of the sequence at given position.
+         */
+        public static long starts(long n) {
             int i, j;
             /* unsigned */
-            long[] m2 = new /* unsigned */ long[64];
-            /* unsigned */
             long temp, ran;
 
             while (n < 0) {
@@ -257,14 +754,7 @@ public class RandomAccessAsyncAt implements StartPoint {
                 n -= PERIOD;
             }
             if (n == 0) {
-                rand = 0x1;
-            }
-
-            temp = 0x1;
-            for (i = 0; i < 64; i++) {
-                m2[i] = temp;
-                temp = (temp << 1) ^ ((long) temp < 0 ? POLY : 0);
-                temp = (temp << 1) ^ ((long) temp < 0 ? POLY : 0);
+                return 0x1;
             }
 
             for (i = 62; i >= 0; i--) {
@@ -284,19 +774,219 @@ public class RandomAccessAsyncAt implements StartPoint {
                 ran = temp;
                 i -= 1;
                 if (((n >> i) & 1) == 1) {
-                    ran = (ran << 1) ^ ((long) ran < 0 ? POLY : 0);
+                    ran = step(ran);
                 }
             }
+            return ran;
+        }
 
-            rand = ran;
+        public void seek(long position) {
+            this.position = position;
+            rand = starts(position);
         }
 
-        public long nextLong() {
+        public void skip(long n) {
+            seek(position + n);
+        }
 
-            rand = (rand << 1) ^ ((long) rand < 0L ? POLY : 0L);
-            // System.out.println(rand);
+        public long nextLong() {
+            rand = step(rand);
+            position++;
             return rand;
         }
+
+        /**
+         * Stores next count values of the sequence in buffer.
+         */
+        public void fill(long[] buffer, int from, int count) {
+            long value = rand;
+            for (int i = from; i < from + count; i++) {
+                value = step(value);
+                buffer[i] = value;
+            }
+            rand = value;
+            position += count;
+        }
+    }
+
+    /**
+     * Sliding window of operations in flight to every destination PE. Every acquire polls the destination,
+     * every eighth one also another destination in turn, so completions are noticed soon after they happen,
+     * and sender stalls only when the window to the destination is full. Window starts at its maximum size.
+     * When adaptive, round trip time of every eighth operation is measured, and the window shrinks by
+     * a quarter only under sustained congestion, when in several windows of completions in a row even the
+     * fastest one took more than twice the lowest round trip time seen recently. Every other window of
+     * completions grows it back by an eighth.
+     */
+    private static class FlowController {
+
+        private static final int SAMPLE_MASK = 7;
+        private static final int BASE_RTT_WINDOWS = 32;
+        private static final int CONGESTED_WINDOWS = 4;
+
+        private final int maxWindow;
+        private final boolean adaptive;
+        private final PcjFuture<?>[][] futures;
+        private final long[][] sentAt;
+        private final int[] head;
+        private final int[] inFlight;
+        private final int[] sent;
+        private final int[] window;
+        private final int[] completions;
+        private final int[] windows;
+        private final int[] congestedWindows;
+        private final long[] windowMinRtt;
+        private final long[] baseRtt;
+        private final long[] previousBaseRtt;
+        private int pollCursor;
+        private long stallNanos;
+        private long windowSum;
+        private long acquires;
+
+        FlowController(int destinations, int maxWindow, boolean adaptive) {
+            this.maxWindow = maxWindow;
+            this.adaptive = adaptive;
+            futures = new PcjFuture<?>[destinations][maxWindow];
+            sentAt = new long[destinations][maxWindow];
+            head = new int[destinations];
+            inFlight = new int[destinations];
+            sent = new int[destinations];
+            window = new int[destinations];
+            completions = new int[destinations];
+            windows = new int[destinations];
+            congestedWindows = new int[destinations];
+            windowMinRtt = new long[destinations];
+            baseRtt = new long[destinations];
+            previousBaseRtt = new long[destinations];
+            Arrays.fill(window, maxWindow);
+            Arrays.fill(windowMinRtt, Long.MAX_VALUE);
+            Arrays.fill(baseRtt, Long.MAX_VALUE);
+            Arrays.fill(previousBaseRtt, Long.MAX_VALUE);
+        }
+
+        /**
+         * Waits until another operation to the destination fits in its window.
+         */
+        void acquire(int dest) {
+            poll(dest);
+            if ((acquires & SAMPLE_MASK) == 0) {
+                poll(pollCursor);
+                if (++pollCursor == futures.length) {
+                    pollCursor = 0;
+                }
+            }
+            if (inFlight[dest] >= window[dest]) {
+                long stallStart = System.nanoTime();
+                while (inFlight[dest] >= window[dest]) {
+                    futures[dest][head[dest]].get();
+                    poll(dest);
+                }
+                stallNanos += System.nanoTime() - stallStart;
+            }
+            windowSum += window[dest];
+            acquires++;
+        }
+
+        void add(int dest, PcjFuture<?> future) {
+            int slot = (head[dest] + inFlight[dest]) % maxWindow;
+            futures[dest][slot] = future;
+            sentAt[dest][slot] = adaptive && (sent[dest]++ & SAMPLE_MASK) == 0 ? System.nanoTime() : 0;
+            inFlight[dest]++;
+        }
+
+        void drain() {
+            for (int dest = 0; dest < futures.length; dest++) {
+                while (inFlight[dest] > 0) {
+                    futures[dest][head[dest]].get();
+                    poll(dest);
+                }
+            }
+        }
+
+        /**
+         * Returns average window size and total stall time in seconds.
+         */
+        double[] metrics() {
+            return new double[]{acquires > 0 ? (double) windowSum / acquires : 0, stallNanos / 1e9};
+        }
+
+        /**
+         * Retires completed operations from the head of the destination's window.
+         */
+        private void poll(int dest) {
+            long now = 0;
+            while (inFlight[dest] > 0 && futures[dest][head[dest]].isDone()) {
+                if (now == 0 && sentAt[dest][head[dest]] != 0) {
+                    now = System.nanoTime();
+                }
+                retire(dest, now);
+            }
+        }
+
+        private void retire(int dest, long now) {
+            int slot = head[dest];
+            futures[dest][slot].get();
+            futures[dest][slot] = null;
+            head[dest] = slot + 1 == maxWindow ? 0 : slot + 1;
+            inFlight[dest]--;
+
+            if (sentAt[dest][slot] != 0) {
+                long rtt = now - sentAt[dest][slot];
+                windowMinRtt[dest] = Math.min(windowMinRtt[dest], rtt);
+                baseRtt[dest] = Math.min(baseRtt[dest], rtt);
+            }
+            if (adaptive && ++completions[dest] >= window[dest]) {
+                adjust(dest);
+            }
+        }
+
+        private void adjust(int dest) {
+            long base = Math.min(baseRtt[dest], previousBaseRtt[dest]);
+            if (windowMinRtt[dest] != Long.MAX_VALUE) {
+                if (windowMinRtt[dest] <= 2 * base) {
+                    congestedWindows[dest] = 0;
+                    window[dest] = Math.min(maxWindow, window[dest] + Math.max(1, window[dest] / 8));
+                } else if (++congestedWindows[dest] >= CONGESTED_WINDOWS) {
+                    congestedWindows[dest] = 0;
+                    window[dest] = Math.max(1, window[dest] - window[dest] / 4);
+                }
+            }
+            completions[dest] = 0;
+            windowMinRtt[dest] = Long.MAX_VALUE;
+            // base round trip time is the lowest one of the last BASE_RTT_WINDOWS to 2 * BASE_RTT_WINDOWS windows
+            if (++windows[dest] % BASE_RTT_WINDOWS == 0) {
+                previousBaseRtt[dest] = baseRtt[dest];
+                baseRtt[dest] = Long.MAX_VALUE;
+            }
+        }
+    }
+
+    private static class UpdateMessage implements Serializable {
+
+        private final long[] updates;
+        private final boolean shutDown;
+
+        UpdateMessage(long[] updates, boolean shutDown) {
+            this.updates = updates;
+            this.shutDown = shutDown;
+        }
+    }
+
+    private static class BatchUpdateTask implements AsyncTask.VoidTask {
+
+        private final long[] updates;
+        private final int finalLocalN;
+
+        BatchUpdateTask(long[] updates, int finalLocalN) {
+            this.updates = updates;
+            this.finalLocalN = finalLocalN;
+        }
+
+        @Override
+        public void run() {
+            AtomicLongArray table = PCJ.getLocal(Shared.table);
+            UpdateApplier.apply(table, updates, updates.length, finalLocalN - 1);
+        }
     }
 
     private static class UpdateTask implements AsyncTask.VoidTask {
@@ -311,9 +1001,28 @@ public class RandomAccessAsyncAt implements StartPoint {
 
         @Override
         public void run() {
-            int localOffset = (int) (randomLocation & (finalLocalN - 1));
-            long[] table = PCJ.getLocal(Shared.table);
-            table[localOffset] ^= randomLocation;
+            AtomicLongArray table = PCJ.getLocal(Shared.table);
+            UpdateApplier.apply(table, randomLocation, finalLocalN - 1);
+        }
+    }
+
+    /**
+     * Applies updates to the local part of the table with atomic XOR, so updates applied concurrently
+     * by several tasks on the same node are not lost. Batches are applied in place, without allocation.
+     */
+    private static class UpdateApplier {
+
+        private static final LongBinaryOperator XOR = (value, update) -> value ^ update;
+
+        static void apply(AtomicLongArray table, long update, int mask) {
+            table.accumulateAndGet((int) (update & mask), update, XOR);
+        }
+
+        static void apply(AtomicLongArray table, long[] updates, int count, int mask) {
+            for (int i = 0; i < count; i++) {
+                long update = updates[i];
+                table.accumulateAndGet((int) (update & mask), update, XOR);
+            }
         }
     }
 }